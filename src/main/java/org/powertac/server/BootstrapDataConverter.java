@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts a bootstrap dataset between the plain and compressed forms.
+ * A dataset whose name ends in ".gz" is the usual XML document in a gzip
+ * stream; the --boot writer and the --boot-data reader choose the form
+ * the same way. Usage:
+ * <pre>  BootstrapDataConverter input-file output-file</pre>
+ * For example, to produce a compressed copy of an XML dataset,
+ * <pre>  BootstrapDataConverter boot-data.xml boot-data.xml.gz</pre>
+ */
+public class BootstrapDataConverter
+{
+  static final String COMPRESSED_SUFFIX = ".gz";
+
+  public static void main (String[] args)
+  {
+    if (args.length != 2) {
+      System.err.println("Usage: BootstrapDataConverter input-file output-file");
+      System.exit(1);
+    }
+    try {
+      convert(args[0], args[1]);
+    }
+    catch (IOException e) {
+      System.err.println("Cannot convert " + args[0] + ": " + e.toString());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Copies the input dataset to the output file, decompressing and
+   * compressing as their names require.
+   */
+  public static void convert (String inputName, String outputName)
+    throws IOException
+  {
+    InputStream input =
+        openInput(new FileInputStream(inputName), inputName);
+    try {
+      OutputStream output = openOutput(new File(outputName));
+      try {
+        byte[] buffer = new byte[65536];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+          output.write(buffer, 0, count);
+        }
+      }
+      finally {
+        output.close();
+      }
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /**
+   * True just when a dataset of the given name is compressed.
+   */
+  static boolean isCompressed (String name)
+  {
+    return name.endsWith(COMPRESSED_SUFFIX);
+  }
+
+  /**
+   * Wraps the raw stream of a dataset, decompressing it if its name ends
+   * in ".gz".
+   */
+  static InputStream openInput (InputStream raw, String name)
+    throws IOException
+  {
+    if (isCompressed(name))
+      return new GZIPInputStream(raw, 65536);
+    return new BufferedInputStream(raw);
+  }
+
+  /**
+   * Opens a dataset file for writing, compressed if its name ends in
+   * ".gz". Closing the stream finishes the compressed form.
+   */
+  static OutputStream openOutput (File file) throws IOException
+  {
+    OutputStream raw = new FileOutputStream(file);
+    if (isCompressed(file.getName()))
+      return new GZIPOutputStream(raw, 65536);
+    return new BufferedOutputStream(raw);
+  }
+
+  /**
+   * Opens a dataset file for writing XML text, as saveBootstrapData does.
+   */
+  static Writer openWriter (File file) throws IOException
+  {
+    return new OutputStreamWriter(openOutput(file), "UTF-8");
+  }
+}
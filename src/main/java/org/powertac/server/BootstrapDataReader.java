@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Reads a bootstrap dataset, as written by
+ * CompetitionSetupService.saveBootstrapData(), in a single streaming pass.
+ * The dataset has the form
+ * <pre>
+ * &lt;powertac-bootstrap-data&gt;
+ *   &lt;config&gt;&lt;competition ...&gt;...&lt;/competition&gt;&lt;/config&gt;
+ *   &lt;bootstrap-state&gt;&lt;properties&gt;...&lt;/properties&gt;&lt;/bootstrap-state&gt;
+ *   &lt;bootstrap&gt;item item ...&lt;/bootstrap&gt;
+ * &lt;/powertac-bootstrap-data&gt;
+ * </pre>
+ * The competition, the bootstrap-state properties, and each bootstrap
+ * item are captured as XML strings, ready to be decoded by the
+ * XMLMessageConverter. No DOM is built, so the memory needed is roughly
+ * the size of the item text. Decoding is left to the caller, because the
+ * server must be set up for a new game before the items are decoded.
+ */
+public class BootstrapDataReader
+{
+  private XMLInputFactory inputFactory;
+  private XMLOutputFactory outputFactory;
+
+  private String competitionXml = null;
+  private String propertiesXml = null;
+  private List<String> itemXml = new ArrayList<String>();
+
+  public BootstrapDataReader ()
+  {
+    super();
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    outputFactory = XMLOutputFactory.newInstance();
+  }
+
+  /**
+   * Reads a dataset from the given stream. The stream is not closed.
+   */
+  public void read (InputStream input) throws XMLStreamException
+  {
+    XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+    try {
+      // element names at depths 1 and 2
+      String[] path = new String[3];
+      int depth = 0;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth += 1;
+          if (depth < 3) {
+            path[depth] = reader.getLocalName();
+            continue;
+          }
+          // depth 3 - the elements we are looking for
+          String name = reader.getLocalName();
+          if ("bootstrap".equals(path[2])) {
+            itemXml.add(copyElement(reader));
+          }
+          else if ("config".equals(path[2]) && "competition".equals(name)
+                   && null == competitionXml) {
+            competitionXml = copyElement(reader);
+          }
+          else if ("bootstrap-state".equals(path[2])
+                   && "properties".equals(name) && null == propertiesXml) {
+            propertiesXml = copyElement(reader);
+          }
+          else {
+            skipElement(reader);
+          }
+          // the element has been consumed through its end tag
+          depth -= 1;
+        }
+        else if (event == XMLStreamConstants.END_ELEMENT) {
+          depth -= 1;
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns the Competition element, or null if there was none.
+   */
+  public String getCompetitionXml ()
+  {
+    return competitionXml;
+  }
+
+  /**
+   * Returns the bootstrap-state properties element, or null if there
+   * was none.
+   */
+  public String getPropertiesXml ()
+  {
+    return propertiesXml;
+  }
+
+  /**
+   * Returns the bootstrap items in document order.
+   */
+  public List<String> getItemXml ()
+  {
+    return itemXml;
+  }
+
+  // Copies the element at the reader's current START_ELEMENT, and its
+  // content, to a string. Leaves the reader on the matching END_ELEMENT.
+  private String copyElement (XMLStreamReader reader)
+    throws XMLStreamException
+  {
+    StringWriter result = new StringWriter();
+    XMLStreamWriter writer = outputFactory.createXMLStreamWriter(result);
+    int depth = 0;
+    while (true) {
+      switch (reader.getEventType()) {
+      case XMLStreamConstants.START_ELEMENT:
+        depth += 1;
+        writeStartElement(reader, writer);
+        break;
+      case XMLStreamConstants.END_ELEMENT:
+        depth -= 1;
+        writer.writeEndElement();
+        break;
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.SPACE:
+        writer.writeCharacters(reader.getText());
+        break;
+      case XMLStreamConstants.CDATA:
+        writer.writeCData(reader.getText());
+        break;
+      default:
+        // comments and processing instructions are dropped
+        break;
+      }
+      if (depth == 0)
+        break;
+      reader.next();
+    }
+    writer.flush();
+    writer.close();
+    return result.toString();
+  }
+
+  private void writeStartElement (XMLStreamReader reader,
+                                  XMLStreamWriter writer)
+    throws XMLStreamException
+  {
+    String prefix = reader.getPrefix();
+    if (null == prefix || prefix.isEmpty())
+      writer.writeStartElement(reader.getLocalName());
+    else
+      writer.writeStartElement(prefix, reader.getLocalName(),
+                               reader.getNamespaceURI());
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      String nsPrefix = reader.getNamespacePrefix(i);
+      if (null == nsPrefix || nsPrefix.isEmpty())
+        writer.writeDefaultNamespace(reader.getNamespaceURI(i));
+      else
+        writer.writeNamespace(nsPrefix, reader.getNamespaceURI(i));
+    }
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String attPrefix = reader.getAttributePrefix(i);
+      if (null == attPrefix || attPrefix.isEmpty())
+        writer.writeAttribute(reader.getAttributeLocalName(i),
+                              reader.getAttributeValue(i));
+      else
+        writer.writeAttribute(attPrefix, reader.getAttributeNamespace(i),
+                              reader.getAttributeLocalName(i),
+                              reader.getAttributeValue(i));
+    }
+  }
+
+  // Skips the element at the reader's current START_ELEMENT, leaving the
+  // reader on the matching END_ELEMENT.
+  private void skipElement (XMLStreamReader reader)
+    throws XMLStreamException
+  {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT)
+        depth += 1;
+      else if (event == XMLStreamConstants.END_ELEMENT)
+        depth -= 1;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2026 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Outgoing message queue for a single remote broker. Serialized messages
+ * are queued by the simulation thread and sent by a dedicated worker
+ * thread, in the order in which they were queued, so that a slow JMS
+ * connection to one broker does not hold up the simulation or the other
+ * brokers.
+ * <p>
+ * The queue is bounded. If it fills up, the outbox is marked as overflowed,
+ * its remaining messages are discarded, and further messages are refused.
+ * The owner is expected to treat the broker as unresponsive.</p>
+ */
+class BrokerOutbox implements Runnable
+{
+  static private Logger log = Logger.getLogger(BrokerOutbox.class);
+
+  private BrokerProxyService proxy;
+  private String queueName;
+  private BlockingQueue<String> queue;
+
+  // number of messages queued but not yet sent
+  private AtomicInteger pending = new AtomicInteger(0);
+  private volatile boolean overflowed = false;
+  private volatile boolean running = true;
+  private Thread worker;
+
+  BrokerOutbox (BrokerProxyService proxy, String queueName, int capacity)
+  {
+    super();
+    this.proxy = proxy;
+    this.queueName = queueName;
+    this.queue = new ArrayBlockingQueue<String>(capacity);
+  }
+
+  /**
+   * Starts the worker thread.
+   */
+  void start ()
+  {
+    worker = new Thread(this, "outbox-" + queueName);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  String getQueueName ()
+  {
+    return queueName;
+  }
+
+  /**
+   * True just in case this outbox has filled up.
+   */
+  boolean isOverflowed ()
+  {
+    return overflowed;
+  }
+
+  /**
+   * Queues a message for sending. Returns false if the message was refused
+   * because the queue is full, or was full at some earlier time.
+   */
+  boolean offer (String text)
+  {
+    if (overflowed || !running)
+      return false;
+    pending.incrementAndGet();
+    if (!queue.offer(text)) {
+      overflowed = true;
+      pending.decrementAndGet();
+      // nothing more will get through, so don't hang onto the backlog
+      List<String> discards = new ArrayList<String>();
+      queue.drainTo(discards);
+      log.warn("Outbox " + queueName + " overflow, discarded "
+               + discards.size() + " messages");
+      if (pending.addAndGet(-discards.size()) <= 0)
+        notifyFlushed();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Waits at most maxWait msec for the worker to send all messages queued
+   * before this call. Returns true if the queue was emptied.
+   */
+  boolean flush (long maxWait)
+  {
+    long deadline = System.currentTimeMillis() + maxWait;
+    synchronized (this) {
+      while (pending.get() > 0) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          log.warn("Outbox " + queueName + " flush timeout, "
+                   + pending.get() + " messages pending");
+          return false;
+        }
+        try {
+          wait(remaining);
+        }
+        catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stops the worker thread. Unsent messages are discarded.
+   */
+  void shutdown ()
+  {
+    running = false;
+    if (null != worker)
+      worker.interrupt();
+  }
+
+  @Override
+  public void run ()
+  {
+    while (running) {
+      String text;
+      try {
+        text = queue.take();
+      }
+      catch (InterruptedException ie) {
+        // stop, leaving the interrupt status set
+        Thread.currentThread().interrupt();
+        return;
+      }
+      try {
+        proxy.sendText(queueName, text);
+      }
+      catch (RuntimeException e) {
+        log.error("Failed to send to " + queueName + ": " + e.toString());
+      }
+      if (pending.decrementAndGet() <= 0)
+        notifyFlushed();
+    }
+  }
+
+  private synchronized void notifyFlushed ()
+  {
+    notifyAll();
+  }
+}
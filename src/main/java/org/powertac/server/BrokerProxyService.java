@@ -5,7 +5,11 @@ package org.powertac.server;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -14,10 +18,18 @@ import javax.jms.TextMessage;
 
 import org.apache.log4j.Logger;
 import org.powertac.common.Broker;
+import org.powertac.common.Competition;
 import org.powertac.common.TariffSpecification;
 import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.config.ConfigurableValue;
 import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.InitializationService;
+import org.powertac.common.interfaces.ServerConfiguration;
 import org.powertac.common.interfaces.VisualizerProxy;
+import org.powertac.common.msg.SimEnd;
+import org.powertac.common.msg.SimPause;
+import org.powertac.common.msg.SimResume;
+import org.powertac.common.msg.TimeslotComplete;
 import org.powertac.common.repo.BrokerRepo;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jms.core.JmsTemplate;
@@ -25,7 +37,8 @@ import org.springframework.jms.core.MessageCreator;
 import org.springframework.stereotype.Service;
 
 @Service
-public class BrokerProxyService implements BrokerProxy
+public class BrokerProxyService
+implements BrokerProxy, InitializationService
 {
   static private Logger log = Logger.getLogger(BrokerProxyService.class);
 
@@ -44,9 +57,44 @@ public class BrokerProxyService implements BrokerProxy
   @Autowired
   private VisualizerProxy visualizerProxyService;
 
+  @Autowired
+  private JmsManagementService jmsManagementService;
+
+  @Autowired
+  private ServerConfiguration serverConfig;
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "If true, messages to remote brokers are sent by per-broker worker threads")
+  private boolean asyncSend = false;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Maximum number of unsent messages per broker in async mode")
+  private int outboxCapacity = 2000;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Maximum time in msec to wait for outgoing messages at end of timeslot")
+  private int flushTimeout = 1000;
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "If true, messages to each remote broker are batched by timeslot phase")
+  private boolean batchMessages = false;
+
+  @ConfigurableValue(valueType = "String",
+      description = "Broadcast transport: queue (one send per broker) or composite (one send, fanned out by the JMS provider)")
+  private String broadcastTransport = "queue";
+
   // Deferred messages during initialization
   boolean deferredBroadcast = false;
   ArrayList<Object> deferredMessages;
+
+  // per-broker outgoing queues for async mode, indexed by JMS queue name
+  private ConcurrentMap<String, BrokerOutbox> outboxes =
+      new ConcurrentHashMap<String, BrokerOutbox>();
+
+  // per-broker message batches, indexed by JMS queue name. Null when no
+  // batch is open. Guarded by batchLock.
+  private Map<String, MessageBatch> batches = null;
+  private Object batchLock = new Object();
   
   public BrokerProxyService ()
   {
@@ -75,6 +123,14 @@ public class BrokerProxyService implements BrokerProxy
   // break out the actual sending to prevent visualizer getting multiple
   // copies of broadcast messages
   private void localSendMessage (Broker broker, Object messageObject)
+  {
+    localSendMessage(broker, messageObject, null);
+  }
+
+  // sends a message that may already have been serialized. If text is
+  // null, then the message is serialized here only if it's needed.
+  private void localSendMessage (Broker broker, Object messageObject,
+                                 String text)
   {
     // don't send null messages
     if (messageObject == null) {
@@ -93,23 +149,123 @@ public class BrokerProxyService implements BrokerProxy
       broker.receiveMessage(messageObject);
     } 
     else {
-      final String text = converter.toXML(messageObject);
+      if (null == text)
+        text = converter.toXML(messageObject);
       log.debug("send " + messageObject.toString() + 
                " to " + broker.getUsername());
       log.debug("sending text: \n" + text);
-      final String queueName = broker.toQueueName();
+      if (isTimeCritical(messageObject)
+          || !addToBatch(broker.toQueueName(), text))
+        deliverText(broker.toQueueName(), text);
+    }
+  }
 
-      template.send(queueName, new MessageCreator() {
-        @Override
-        public Message createMessage (Session session) throws JMSException
-        {
-          TextMessage message = session.createTextMessage(text);
-          return message;
-        }
-      });
+  // Clock-control messages are sent from the clock thread while a phase
+  // may be running, and brokers must see them at once, so they are never
+  // held in a batch.
+  private boolean isTimeCritical (Object messageObject)
+  {
+    return messageObject instanceof SimPause
+        || messageObject instanceof SimResume;
+  }
+
+  // sends text now, or hands it to the outbox in async mode
+  private void deliverText (String queueName, String text)
+  {
+    if (asyncSend)
+      queueText(queueName, text);
+    else
+      sendText(queueName, text);
+  }
+
+  // adds text to the open batch for the queue. Returns false if
+  // there is no open batch.
+  private boolean addToBatch (String queueName, String text)
+  {
+    synchronized (batchLock) {
+      if (null == batches)
+        return false;
+      MessageBatch batch = batches.get(queueName);
+      if (null == batch) {
+        batch = new MessageBatch(queueName);
+        batches.put(queueName, batch);
+      }
+      batch.add(text);
+      return true;
     }
   }
 
+  // sends the contents of the open batches, if any, and optionally closes
+  // the batch.
+  private void sendBatches (boolean close)
+  {
+    List<MessageBatch> ready;
+    synchronized (batchLock) {
+      if (null == batches)
+        return;
+      ready = new ArrayList<MessageBatch>(batches.values());
+      if (close)
+        batches = null;
+      else
+        batches.clear();
+    }
+    for (MessageBatch batch : ready) {
+      log.debug("sending batch of " + batch.size()
+                + " to " + batch.getQueueName());
+      deliverText(batch.getQueueName(), batch.toXml());
+    }
+  }
+
+  // hands serialized message text to the outbox for the named queue. If
+  // the outbox overflows, the queue is reported as unresponsive.
+  private void queueText (String queueName, String text)
+  {
+    BrokerOutbox outbox = outboxes.get(queueName);
+    if (null == outbox) {
+      BrokerOutbox newOutbox =
+          new BrokerOutbox(this, queueName, outboxCapacity);
+      outbox = outboxes.putIfAbsent(queueName, newOutbox);
+      if (null == outbox) {
+        outbox = newOutbox;
+        outbox.start();
+      }
+    }
+    if (!outbox.offer(text) && null != jmsManagementService) {
+      jmsManagementService.reportUnresponsiveQueue(queueName);
+    }
+  }
+
+  // waits at most flushTimeout msec in all for the outboxes to empty
+  void flushOutboxes ()
+  {
+    long deadline = System.currentTimeMillis() + flushTimeout;
+    for (BrokerOutbox outbox : outboxes.values()) {
+      outbox.flush(Math.max(0l, deadline - System.currentTimeMillis()));
+    }
+  }
+
+  // stops the outbox workers and discards the outboxes
+  private void clearOutboxes ()
+  {
+    for (BrokerOutbox outbox : outboxes.values()) {
+      outbox.shutdown();
+    }
+    outboxes.clear();
+  }
+
+  // sends serialized message text to the named queue
+  void sendText (String queueName, final String text)
+  {
+    template.send(queueName, new MessageCreator() {
+      @Override
+      public Message createMessage (Session session) throws JMSException
+      {
+        TextMessage message = session.createTextMessage(text);
+        return message;
+      }
+    });
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -140,16 +296,134 @@ public class BrokerProxyService implements BrokerProxy
       return;
     }
 
-    // dispatch to visualizers
-    visualizerProxyService.forwardMessage(messageObject);
+    if (messageObject == null) {
+      log.error("null broadcast message ignored");
+      return;
+    }
 
+    // Serialize the message at most once, and only if some remote recipient
+    // needs the text.
     Collection<Broker> brokers = brokerRepo.list();
+    String text = null;
+    if (needsText(brokers)) {
+      text = converter.toXML(messageObject);
+    }
+
+    // dispatch to visualizers
+    forwardToVisualizer(messageObject, text);
+
+    // In composite mode, the remote broker queues are collected and the
+    // message is sent once to an ActiveMQ composite destination, which
+    // the JMS provider fans out to the individual queues. This is not
+    // JMS provider neutral, so the default is one send per broker.
+    boolean composite = useCompositeBroadcast();
+    List<String> queueNames = new ArrayList<String>();
     for (Broker broker : brokers) {
-      // let's be JMS provider neutral and not take advance of special queues in
-      // ActiveMQ
-      // if we have JMS performance issue, we will look into optimization using
-      // ActiveMQ special queues.
-      localSendMessage(broker, messageObject);
+      if (composite && broker.isEnabled() && !broker.isLocal())
+        queueNames.add(broker.toQueueName());
+      else
+        localSendMessage(broker, messageObject, text);
+    }
+    if (queueNames.size() > 0) {
+      log.debug("broadcast " + messageObject.toString()
+                + " to " + queueNames.size() + " brokers");
+      sendText(compositeDestination(queueNames), text);
+    }
+
+    // Brokers must see everything sent in a timeslot before they see
+    // its completion marker, and everything before the end of the sim.
+    if (messageObject instanceof TimeslotComplete
+        || messageObject instanceof SimEnd) {
+      sendBatches(true);
+      if (asyncSend)
+        flushOutboxes();
+    }
+  }
+
+  // Composite sends bypass the per-broker outboxes and batches, so they
+  // can only be used when neither is in play; otherwise message order
+  // for a broker could not be guaranteed.
+  private boolean useCompositeBroadcast ()
+  {
+    if (!"composite".equals(broadcastTransport) || asyncSend)
+      return false;
+    synchronized (batchLock) {
+      return null == batches;
+    }
+  }
+
+  // ActiveMQ composite destination names are comma-separated lists of
+  // physical destinations.
+  private String compositeDestination (List<String> queueNames)
+  {
+    StringBuilder buf = new StringBuilder();
+    String delimiter = "";
+    for (String name : queueNames) {
+      buf.append(delimiter).append(name);
+      delimiter = ",";
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Starts collecting messages to remote brokers into per-broker batches,
+   * if batching is configured. The batches are sent by flushBatch(), and
+   * the batch is closed by broadcasting TimeslotComplete. See
+   * {@link MessageBatch} for the envelope format.
+   */
+  public void startBatch ()
+  {
+    if (!batchMessages)
+      return;
+    synchronized (batchLock) {
+      if (null == batches)
+        batches = new LinkedHashMap<String, MessageBatch>();
+    }
+  }
+
+  /**
+   * Sends the messages collected since the last flush, leaving the batch
+   * open. Called at the end of each timeslot phase.
+   */
+  public void flushBatch ()
+  {
+    sendBatches(false);
+  }
+
+  /**
+   * Sends the messages collected since the last flush and closes the
+   * batch, so later messages are sent at once. Called when a timeslot
+   * ends without broadcasting TimeslotComplete.
+   */
+  public void closeBatch ()
+  {
+    sendBatches(true);
+  }
+
+  // True if a broadcast will need the serialized form of the message,
+  // either for an enabled remote broker or for a remote visualizer.
+  private boolean needsText (Collection<Broker> brokers)
+  {
+    for (Broker broker : brokers) {
+      if (broker.isEnabled() && !broker.isLocal())
+        return true;
+    }
+    return (visualizerProxyService instanceof VisualizerProxyService
+            && ((VisualizerProxyService)visualizerProxyService)
+                 .isRemoteVisualizer());
+  }
+
+  // Hands the message to the visualizer, along with its serialized form
+  // if we have it.
+  private void forwardToVisualizer (Object messageObject, String text)
+  {
+    if (null != text
+        && visualizerProxyService instanceof VisualizerProxyService) {
+      ((VisualizerProxyService)visualizerProxyService)
+          .forwardMessage(messageObject, text);
+    }
+    else {
+      visualizerProxyService.forwardMessage(messageObject);
     }
   }
 
@@ -186,6 +460,43 @@ public class BrokerProxyService implements BrokerProxy
     }
   }
 
+  /**
+   * Shuts down outgoing message workers left over from a previous sim.
+   */
+  @Override
+  public void setDefaults ()
+  {
+    synchronized (batchLock) {
+      batches = null;
+    }
+    clearOutboxes();
+  }
+
+  @Override
+  public String initialize (Competition competition,
+                            List<String> completedInits)
+  {
+    serverConfig.configureMe(this);
+    if (asyncSend) {
+      log.info("async send, outbox capacity " + outboxCapacity);
+    }
+    if (batchMessages) {
+      log.info("batching messages by timeslot phase");
+    }
+    if ("composite".equals(broadcastTransport)) {
+      log.info("broadcast through composite destinations");
+      if (asyncSend || batchMessages)
+        log.warn("composite broadcast is not used with asyncSend, "
+                 + "or within message batches");
+    }
+    else if (!"queue".equals(broadcastTransport)) {
+      log.error("unknown broadcastTransport " + broadcastTransport
+                + ", using queue");
+      broadcastTransport = "queue";
+    }
+    return "BrokerProxy";
+  }
+
   @Override
   public void registerBrokerMessageListener (Object listener, Class<?> msgType)
   {
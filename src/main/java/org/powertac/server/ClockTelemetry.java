@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Per-tick record of how the simulation clock behaved. For each tick,
+ * SimulationClockControl reports when the tick was due, when it was
+ * actually delivered, when the simulator called complete(), whether
+ * the watchdog found the simulator still busy (DELAYED), how long the
+ * clock was paused, and how far the start time was moved. All times are
+ * in msec. Events may come from the scheduler thread, the simulation
+ * thread, or broker message threads, so methods are synchronized.
+ * <p>
+ * Only the most recent records are kept in memory. A record is final
+ * once the next tick starts; final records are added to the running
+ * totals reported by summary(), and if a file has been opened with
+ * open(), written to it as a line of CSV. close() writes the last
+ * record and closes the file.</p>
+ */
+public class ClockTelemetry
+{
+  static private Logger log = Logger.getLogger(ClockTelemetry.class);
+
+  static final String CSV_HEADER =
+      "tick,scheduled,actual,late,step,delayed,pause,startShift";
+
+  static final int DEFAULT_CAPACITY = 1000;
+
+  private int capacity;
+  private ArrayDeque<TickRecord> records = new ArrayDeque<TickRecord>();
+  private TickRecord current = null;
+  private long pauseStart = -1l;
+  private PrintWriter csv = null;
+
+  // totals over the final records
+  private Totals totals = new Totals();
+
+  public ClockTelemetry ()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates an instance that keeps at most capacity records in memory.
+   */
+  public ClockTelemetry (int capacity)
+  {
+    super();
+    this.capacity = Math.max(1, capacity);
+  }
+
+  /**
+   * Opens the named file and writes each record to it in CSV format
+   * as the record becomes final.
+   */
+  public synchronized void open (String filename)
+  {
+    close();
+    try {
+      csv = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+      csv.println(CSV_HEADER);
+    }
+    catch (IOException ioe) {
+      log.error("Cannot write clock telemetry to " + filename
+                + ": " + ioe.toString());
+    }
+  }
+
+  /**
+   * Makes the current record final, and closes the file, if any.
+   */
+  public synchronized void close ()
+  {
+    finish();
+    if (null != csv) {
+      csv.close();
+      csv = null;
+    }
+  }
+
+  /**
+   * Starts the record for a tick that was due at scheduled and was
+   * delivered at actual.
+   */
+  public synchronized void tick (long scheduled, long actual)
+  {
+    finish();
+    current = new TickRecord(totals.count, scheduled, actual);
+    records.addLast(current);
+    if (records.size() > capacity)
+      records.removeFirst();
+  }
+
+  // adds the current record to the totals and the file
+  private void finish ()
+  {
+    TickRecord record = current;
+    if (null == record)
+      return;
+    current = null;
+    totals.add(record);
+    if (null != csv)
+      csv.println(record.toCsv());
+  }
+
+  /**
+   * Records the time at which the simulator completed the current tick.
+   */
+  public synchronized void complete (long time)
+  {
+    if (null != current && current.step < 0)
+      current.step = time - current.actual;
+  }
+
+  /**
+   * Records that the watchdog found the simulator still working.
+   */
+  public synchronized void delayed ()
+  {
+    if (null != current)
+      current.delayed = true;
+  }
+
+  /**
+   * Records the start of a pause, whether caused by a delay or by a
+   * broker request.
+   */
+  public synchronized void pauseStarted (long time)
+  {
+    if (pauseStart < 0)
+      pauseStart = time;
+  }
+
+  /**
+   * Records the end of a pause, charging its length to the current tick.
+   */
+  public synchronized void pauseEnded (long time)
+  {
+    if (pauseStart < 0)
+      return;
+    if (null != current)
+      current.pause += time - pauseStart;
+    pauseStart = -1l;
+  }
+
+  /**
+   * Records a change of offset msec in the clock's start time.
+   */
+  public synchronized void startShifted (long offset)
+  {
+    if (null != current)
+      current.startShift += offset;
+  }
+
+  /**
+   * Returns the mean step time of the last n completed ticks kept in
+   * memory, or -1 if there are none.
+   */
+  public synchronized long recentStepMillis (int n)
+  {
+    long total = 0l;
+    int found = 0;
+    Iterator<TickRecord> records = this.records.descendingIterator();
+    while (records.hasNext() && found < n) {
+      TickRecord record = records.next();
+      if (record.step >= 0) {
+        total += record.step;
+        found += 1;
+      }
+    }
+    return (found == 0) ? -1l : total / found;
+  }
+
+  /**
+   * Returns the number of ticks recorded.
+   */
+  public synchronized int size ()
+  {
+    return totals.count + ((null == current) ? 0 : 1);
+  }
+
+  /**
+   * Writes the records kept in memory to the named file in CSV format.
+   */
+  public synchronized void writeCsv (String filename)
+  {
+    PrintWriter out = null;
+    try {
+      out = new PrintWriter(new FileWriter(filename));
+      out.println(CSV_HEADER);
+      for (TickRecord record : records) {
+        out.println(record.toCsv());
+      }
+    }
+    catch (IOException ioe) {
+      log.error("Cannot write clock telemetry to " + filename
+                + ": " + ioe.toString());
+    }
+    finally {
+      if (null != out)
+        out.close();
+    }
+  }
+
+  /**
+   * Returns a one-line summary of all ticks recorded.
+   */
+  public synchronized String summary ()
+  {
+    Totals result = new Totals();
+    result.add(totals);
+    if (null != current)
+      result.add(current);
+    return result.toString();
+  }
+
+  // running totals over a set of records
+  class Totals
+  {
+    int count = 0;
+    int delayed = 0;
+    long maxLate = 0l;
+    long maxStep = 0l;
+    long stepTotal = 0l;
+    int stepCount = 0;
+    long pause = 0l;
+    long startShift = 0l;
+
+    void add (TickRecord record)
+    {
+      count += 1;
+      if (record.delayed)
+        delayed += 1;
+      maxLate = Math.max(maxLate, record.actual - record.scheduled);
+      if (record.step >= 0) {
+        maxStep = Math.max(maxStep, record.step);
+        stepTotal += record.step;
+        stepCount += 1;
+      }
+      pause += record.pause;
+      startShift += record.startShift;
+    }
+
+    void add (Totals other)
+    {
+      count += other.count;
+      delayed += other.delayed;
+      maxLate = Math.max(maxLate, other.maxLate);
+      maxStep = Math.max(maxStep, other.maxStep);
+      stepTotal += other.stepTotal;
+      stepCount += other.stepCount;
+      pause += other.pause;
+      startShift += other.startShift;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return "ticks=" + count
+          + " delayed=" + delayed
+          + " maxLate=" + maxLate
+          + " meanStep=" + ((stepCount == 0) ? 0 : stepTotal / stepCount)
+          + " maxStep=" + maxStep
+          + " pause=" + pause
+          + " startShift=" + startShift;
+    }
+  }
+
+  // a single tick
+  class TickRecord
+  {
+    int index;
+    long scheduled;
+    long actual;
+    long step = -1l;
+    boolean delayed = false;
+    long pause = 0l;
+    long startShift = 0l;
+
+    TickRecord (int index, long scheduled, long actual)
+    {
+      super();
+      this.index = index;
+      this.scheduled = scheduled;
+      this.actual = actual;
+    }
+
+    String toCsv ()
+    {
+      return index + "," + scheduled + "," + actual
+          + "," + (actual - scheduled) + "," + step
+          + "," + (delayed ? 1 : 0) + "," + pause + "," + startShift;
+    }
+  }
+}
@@ -30,11 +30,18 @@ import org.powertac.common.repo.RandomSeedRepo;
 import org.powertac.common.repo.TimeslotRepo;
 import org.powertac.common.repo.WeatherReportRepo;
 import org.powertac.common.spring.SpringApplicationContext;
+import org.springframework.aop.support.AopUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is the competition controller. It has two major roles in the
@@ -71,6 +78,9 @@ public class CompetitionControlService
 
   private SimulationClockControl clock;
 
+  // state of the current session that is kept apart from other sessions
+  private SessionContext sessionContext = new SessionContext("default", "");
+
   @Autowired
   private TimeService timeService; // inject simulation time service dependency
 
@@ -156,6 +166,29 @@ public class CompetitionControlService
       description = "depth of stack trace on exception")
   private int stackTraceDepth = 5;
 
+  @ConfigurableValue(valueType = "Boolean",
+      description = "If true, the processors in each timeslot phase run concurrently")
+  private boolean parallelPhases = false;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Number of threads for concurrent phase processing")
+  private int phaseThreads = 4;
+
+  @ConfigurableValue(valueType = "String",
+      description = "Processor dependencies within a phase, as comma-separated dependent:prerequisite pairs of class names")
+  private String phaseDependencies = "";
+
+  // for concurrent phases, each phase is a sequence of layers of
+  // processors that can run concurrently
+  private ExecutorService phaseExecutor = null;
+  private List<List<List<TimeslotPhaseProcessor>>> phaseLayers = null;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Number of recent timeslots used for step timing percentiles")
+  private int profileWindow = 2000;
+
+  private StepProfiler profiler = null;
+
   // if we don't have a bootstrap dataset, we are in bootstrap mode.
   private boolean bootstrapMode = true;
   private List<Object> bootstrapDataset = null;
@@ -174,8 +207,9 @@ public class CompetitionControlService
 
     // register with JMS Server
     if (!bootstrapMode) {
-      jmsManagementService.initializeServerQueue(serverQueueName);
-      jmsManagementService.registerMessageListener(serverQueueName,
+      String inputQueueName = sessionContext.getQueueName(serverQueueName);
+      jmsManagementService.initializeServerQueue(inputQueueName);
+      jmsManagementService.registerMessageListener(inputQueueName,
           serverMessageReceiver);
     }
     
@@ -255,6 +289,15 @@ public class CompetitionControlService
     bootstrapDataset = dataset;
   }
   
+  /**
+   * Sets the context of the session to be run next. Queue names are
+   * qualified by the context, and the session's clock is recorded in it.
+   */
+  void setSessionContext (SessionContext context)
+  {
+    sessionContext = context;
+  }
+
   /**
    * Sets the name of the server's JMS input queue.
    */
@@ -351,6 +394,10 @@ public class CompetitionControlService
       return false;
     }
 
+    // plugins are registered now, so we can see what can run concurrently
+    setupPhaseLayers();
+    profiler = new StepProfiler(profileWindow);
+
     // set up the initial timeslots - some initialization processes may need to
     // see a non-null current timeslot.
     createInitialTimeslots(timeService.getCurrentTime(),
@@ -510,8 +557,9 @@ public class CompetitionControlService
     broker.setEnabled(true);
     if (!broker.isLocal()) {
       // non-local brokers need queues and keys
-      String queueName = authorizedBrokerMap.get(username);
-      broker.setQueueName(authorizedBrokerMap.get(username));
+      String queueName =
+          sessionContext.getQueueName(authorizedBrokerMap.get(username));
+      broker.setQueueName(queueName);
       jmsManagementService.createQueue(queueName);
       computeBrokerKey(broker);
     }
@@ -733,7 +781,7 @@ public class CompetitionControlService
   /**
    * Runs a step of the simulation
    */
-  private void step ()
+  void step () // package visibility for testing
   {
     // allow for controlled shutdown
     if (checkAbort()) {
@@ -741,32 +789,54 @@ public class CompetitionControlService
       return;
     }
 
-    Date started = new Date();
+    profiler.startStep();
     
     // make sure the clock has not drifted
     clock.checkClockDrift();
 
+    // outgoing messages may be batched until the end of each phase
+    startOutgoingBatch();
+    long start = profiler.start();
     int ts = activateNextTimeslot();
-    if (!running)
+    profiler.record("activate", start);
+    if (!running) {
+      closeOutgoingBatch();
       return;
+    }
     Instant time = timeService.getCurrentTime();
     log.info("step at " + time.toString());
     
     // check queue status before sending new messages
+    start = profiler.start();
     detectAndKillHangingQueues();
+    profiler.record("queues", start);
 
     for (int index = 0; index < phaseRegistrations.size(); index++) {
       log.info("activate phase " + (index + 1));
-      for (TimeslotPhaseProcessor fn : phaseRegistrations.get(index)) {
-        fn.activate(time, index + 1);
+      long phaseStart = profiler.start();
+      if (null == phaseLayers) {
+        for (TimeslotPhaseProcessor fn : phaseRegistrations.get(index)) {
+          activateProcessor(fn, time, index + 1);
+        }
       }
+      else {
+        runPhaseLayers(phaseLayers.get(index), time, index + 1);
+      }
+      flushOutgoingBatch();
+      profiler.record("phase" + (index + 1), phaseStart);
+      log.info("phase " + (index + 1) + " "
+               + ((null == phaseLayers) ? "sequential" : "concurrent")
+               + ": " + (System.nanoTime() - phaseStart) / 1000000 + " msec");
     }
     TimeslotComplete msg = new TimeslotComplete(ts);
+    start = profiler.start();
     brokerProxyService.broadcastMessage(msg);
-    Date ended = new Date();
-    long elapsed = ended.getTime() - started.getTime();
+    profiler.record("broadcast", start);
+    String profile = profiler.endStep(ts);
+    long elapsed = profiler.getStepMillis();
     if (!bootstrapMode) {
-      tournamentSchedulerService.heartbeat(ts, composeBrokerStats(), elapsed);
+      tournamentSchedulerService.heartbeat(ts, composeBrokerStats(),
+                                           elapsed, profile);
     }
     log.info("Elapsed time: " + elapsed);
     if (--timeslotCount <= 0) {
@@ -775,6 +845,198 @@ public class CompetitionControlService
     }
   }
 
+  // Sets up concurrent phase processing, if it's configured. The processors
+  // in each phase are sorted into layers, such that each processor's
+  // prerequisites are in earlier layers.
+  void setupPhaseLayers () // package visibility for testing
+  {
+    phaseLayers = null;
+    if (!parallelPhases || null == phaseRegistrations)
+      return;
+    Map<String, Set<String>> prerequisites = parsePhaseDependencies();
+    phaseLayers = new ArrayList<List<List<TimeslotPhaseProcessor>>>();
+    for (int index = 0; index < phaseRegistrations.size(); index++) {
+      phaseLayers.add(makeLayers(phaseRegistrations.get(index),
+                                 prerequisites, index + 1));
+    }
+    if (null == phaseExecutor) {
+      // named daemon threads, so they show in the logs and cannot hold up
+      // shutdown
+      phaseExecutor = Executors.newFixedThreadPool(Math.max(1, phaseThreads),
+                                                   new ThreadFactory() {
+        private AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread (Runnable task)
+        {
+          Thread thread = new Thread(task, "phase-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    log.info("concurrent phase processing with " + phaseThreads + " threads");
+  }
+
+  // phaseDependencies is a list of dependent:prerequisite pairs
+  private Map<String, Set<String>> parsePhaseDependencies ()
+  {
+    Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+    if (null == phaseDependencies)
+      return result;
+    for (String pair : phaseDependencies.split(",")) {
+      if (pair.trim().isEmpty())
+        continue;
+      String[] names = pair.split(":");
+      if (names.length != 2) {
+        log.error("Bad phase dependency " + pair);
+        continue;
+      }
+      String dependent = names[0].trim();
+      Set<String> prereqs = result.get(dependent);
+      if (null == prereqs) {
+        prereqs = new HashSet<String>();
+        result.put(dependent, prereqs);
+      }
+      prereqs.add(names[1].trim());
+    }
+    return result;
+  }
+
+  // Sorts the processors of a phase into layers. Dependencies on
+  // processors in other phases are already satisfied by the phase order.
+  private List<List<TimeslotPhaseProcessor>>
+  makeLayers (List<TimeslotPhaseProcessor> processors,
+              Map<String, Set<String>> prerequisites, int phase)
+  {
+    List<List<TimeslotPhaseProcessor>> layers =
+        new ArrayList<List<TimeslotPhaseProcessor>>();
+    Set<String> inPhase = new HashSet<String>();
+    for (TimeslotPhaseProcessor fn : processors)
+      inPhase.add(processorName(fn));
+    Set<String> done = new HashSet<String>();
+    List<TimeslotPhaseProcessor> remaining =
+        new ArrayList<TimeslotPhaseProcessor>(processors);
+    while (remaining.size() > 0) {
+      List<TimeslotPhaseProcessor> layer =
+          new ArrayList<TimeslotPhaseProcessor>();
+      for (TimeslotPhaseProcessor fn : remaining) {
+        boolean ready = true;
+        Set<String> prereqs = prerequisites.get(processorName(fn));
+        if (null != prereqs) {
+          for (String prereq : prereqs) {
+            if (inPhase.contains(prereq) && !done.contains(prereq))
+              ready = false;
+          }
+        }
+        if (ready)
+          layer.add(fn);
+      }
+      if (layer.isEmpty()) {
+        // must be a cycle - run the rest one at a time
+        log.error("Circular dependencies in phase " + phase
+                  + ", running " + remaining.size() + " processors in sequence");
+        for (TimeslotPhaseProcessor fn : remaining) {
+          layers.add(Collections.singletonList(fn));
+        }
+        break;
+      }
+      remaining.removeAll(layer);
+      for (TimeslotPhaseProcessor fn : layer)
+        done.add(processorName(fn));
+      layers.add(layer);
+    }
+    return layers;
+  }
+
+  // Runs the layers of a phase in order, with the processors in each layer
+  // running concurrently. The first exception thrown by a processor is
+  // re-thrown once its layer is finished.
+  private void runPhaseLayers (List<List<TimeslotPhaseProcessor>> layers,
+                               final Instant time, final int phase)
+  {
+    for (List<TimeslotPhaseProcessor> layer : layers) {
+      if (layer.size() == 1) {
+        activateProcessor(layer.get(0), time, phase);
+        continue;
+      }
+      List<Future<?>> results = new ArrayList<Future<?>>();
+      for (final TimeslotPhaseProcessor fn : layer) {
+        results.add(phaseExecutor.submit(new Runnable() {
+          @Override
+          public void run ()
+          {
+            activateProcessor(fn, time, phase);
+          }
+        }));
+      }
+      Throwable failure = null;
+      for (Future<?> result : results) {
+        try {
+          result.get();
+        }
+        catch (ExecutionException e) {
+          if (null == failure)
+            failure = e.getCause();
+        }
+        catch (InterruptedException e) {
+          // keep the interrupt for the sim thread to see
+          Thread.currentThread().interrupt();
+          if (null == failure)
+            failure = e;
+        }
+      }
+      if (failure instanceof RuntimeException)
+        throw (RuntimeException) failure;
+      else if (failure instanceof Error)
+        throw (Error) failure;
+      else if (null != failure)
+        throw new RuntimeException(failure);
+    }
+  }
+
+  // The class name of a processor, as used in phaseDependencies and in
+  // the profile. Spring may hand us a proxy, whose class name is not the
+  // one the configuration refers to.
+  private String processorName (TimeslotPhaseProcessor fn)
+  {
+    return AopUtils.getTargetClass(fn).getSimpleName();
+  }
+
+  // Activates a single processor, recording its time in the profile
+  private void activateProcessor (TimeslotPhaseProcessor fn,
+                                  Instant time, int phase)
+  {
+    long start = profiler.start();
+    try {
+      fn.activate(time, phase);
+    }
+    finally {
+      profiler.record("p" + phase + "." + processorName(fn),
+                      start);
+    }
+  }
+
+  // Batching is a feature of the full BrokerProxyService, not of the
+  // BrokerProxy interface.
+  private void startOutgoingBatch ()
+  {
+    if (brokerProxyService instanceof BrokerProxyService)
+      ((BrokerProxyService)brokerProxyService).startBatch();
+  }
+
+  private void flushOutgoingBatch ()
+  {
+    if (brokerProxyService instanceof BrokerProxyService)
+      ((BrokerProxyService)brokerProxyService).flushBatch();
+  }
+
+  private void closeOutgoingBatch ()
+  {
+    if (brokerProxyService instanceof BrokerProxyService)
+      ((BrokerProxyService)brokerProxyService).closeBatch();
+  }
+
   private void detectAndKillHangingQueues() {
     Set<String> badQueues = jmsManagementService.processQueues();
     if (badQueues != null && badQueues.size() > 0) {
@@ -908,6 +1170,14 @@ public class CompetitionControlService
     if (clock != null) {
       clock.waitUntilStop();
     }
+    serverMessageReceiver.stop();
+    if (null != profiler) {
+      log.info("Step timing (usec)\n" + profiler.summary());
+    }
+    if (null != phaseExecutor) {
+      phaseExecutor.shutdown();
+      phaseExecutor = null;
+    }
     jmsManagementService.stop();
     
     logService.stopLog();
@@ -1057,8 +1327,10 @@ public class CompetitionControlService
     {
       int sequentialExceptions = 0;
 
-      SimulationClockControl.initialize(parent, timeService);
-      clock = SimulationClockControl.getInstance();
+      clock = SimulationClockControl.create(parent, timeService,
+                                            configService);
+      sessionContext.setClock(clock);
+      clock.setTelemetryFile(logService.getLogFilename("clock.csv"));
       // wait for start time
       long now = new Date().getTime();
       // start is beginning of boot
@@ -1086,7 +1358,11 @@ public class CompetitionControlService
       clock.scheduleTick();
       while (running) {
         log.info("Wait for tick " + currentSlot);
-        clock.waitForTick(currentSlot);
+        if (!clock.waitForTick(currentSlot)) {
+          // clock stopped or thread interrupted
+          running = false;
+          break;
+        }
         try {
           step();
           sequentialExceptions = 0;
@@ -1110,7 +1386,9 @@ public class CompetitionControlService
             running = false;
         }
         currentSlot += 1;
-        clock.complete();
+        // the last tick is ended by stop(), not complete()
+        if (running)
+          clock.complete();
       }
       // simulation is complete
       log.info("Stop simulation");
@@ -36,28 +36,29 @@ import org.powertac.common.spring.SpringApplicationContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.*;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Manages command-line and file processing for pre-game simulation setup. 
@@ -69,6 +70,20 @@ import java.util.Properties;
  * set up the environment and allow configuration of the next game, through
  * a web (or REST) interface.</li>
  * </ul>
+ * With the <code>--queue</code> option, a single server process runs a
+ * series of games, one after another, keeping the Spring context and the
+ * JMS provider alive between them. The queue is either a file with the
+ * command-line arguments for one game on each line, or a directory that
+ * is watched for files named <code>*.game</code>, each containing the
+ * arguments for one game. A watched directory is processed until a file
+ * named <code>stop</code> appears in it.
+ * <p>
+ * Each game runs in its own {@link SessionContext}, which keeps its clock,
+ * log files and queue names apart from those of other games. The
+ * <code>--queue-prefix</code> option gives a prefix for the names of the
+ * game's server input queue and broker queues. Games still run one at a
+ * time, because the Competition, the repos and the plugin services are
+ * shared by the whole process.</p>
  * @author John Collins
  */
 @Service
@@ -101,11 +116,28 @@ public class CompetitionSetupService
   @Autowired
   private TimeService timeService;
 
+  @Autowired
+  private JmsManagementService jmsManagementService;
+
   private Competition competition;
   private int gameId = 0;
   private URL controllerURL;
   private String seedSource = null;
   private Thread session = null;
+  private String queuePrefix = null;
+  private int sessionCount = 0;
+
+  // setup timing for queued games
+  private volatile long setupStart = 0l;
+  private volatile long setupMillis = -1l;
+  private long queuePollMillis = 1000l;
+
+  // smallest chunk of bootstrap items decoded on one thread
+  private int minDecodeChunk = 16;
+
+  // command-line error that ends a single-game run
+  static final String NO_SESSION_TYPE =
+      "Must provide either --boot or --sim to run server";
 
   /**
    * Standard constructor
@@ -123,12 +155,153 @@ public class CompetitionSetupService
   {
     // pick up and process the command-line arg if it's there
     if (args.length > 1) {
-      // cli setup
-      processCli(args);
+      if (args[0].equals("--queue")) {
+        processQueue(args[1]);
+        return;
+      }
+      // cli setup; processCli has already reported any error
+      String error = processCli(args);
+      if (NO_SESSION_TYPE.equals(error)) {
+        System.exit(1);
+      }
       waitForSession();
     }
   }
 
+  // Runs the games in a queue one after another, keeping the JMS provider
+  // between games.
+  private void processQueue (String queueName)
+  {
+    File queue = new File(queueName);
+    List<String> lines = null;
+    if (!queue.isDirectory()) {
+      lines = readQueueFile(queue);
+      if (null == lines)
+        return;
+    }
+    jmsManagementService.setKeepProviderAlive(true);
+    // A cold start of a single game also pays for JVM and Spring startup,
+    // which happened before the queue was started
+    long startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+    long coldSetup = -1l;
+    long warmSetup = 0l;
+    long totalSaved = 0l;
+    int warmGames = 0;
+    int games = 0;
+    String[] spec;
+    while (null != (spec = nextQueuedGame(queue, lines))) {
+      log.info("queued game " + (games + 1) + ": " + Arrays.toString(spec));
+      setupStart = System.currentTimeMillis();
+      setupMillis = -1l;
+      session = null;
+      String error = processCli(spec);
+      if (null != error) {
+        log.error("queued game skipped: " + error);
+        continue;
+      }
+      waitForSession();
+      games += 1;
+      if (setupMillis < 0)
+        continue;
+      if (coldSetup < 0) {
+        coldSetup = startupMillis + setupMillis;
+        log.info("game " + games + " setup " + setupMillis
+                 + " msec, cold start " + coldSetup + " msec");
+      }
+      else {
+        warmSetup += setupMillis;
+        warmGames += 1;
+        totalSaved += coldSetup - setupMillis;
+        log.info("game " + games + " setup " + setupMillis
+                 + " msec, saved " + (coldSetup - setupMillis)
+                 + " msec against a cold start");
+      }
+    }
+    jmsManagementService.setKeepProviderAlive(false);
+    if (jmsManagementService.isServingJms())
+      jmsManagementService.stopProvider();
+    String summary = "Queue finished: " + games + " games";
+    if (warmGames > 0) {
+      summary += ", cold start " + coldSetup + " msec, warm setup "
+          + (warmSetup / warmGames) + " msec per game, saved "
+          + (totalSaved / warmGames) + " msec per game, "
+          + totalSaved + " msec in all";
+    }
+    System.out.println(summary);
+  }
+
+  // Reads the lines of a queue file
+  private List<String> readQueueFile (File queue)
+  {
+    List<String> result = new ArrayList<String>();
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(queue));
+      String line;
+      while (null != (line = in.readLine())) {
+        result.add(line);
+      }
+      in.close();
+    }
+    catch (IOException ioe) {
+      System.err.println("Cannot read game queue " + queue + ": "
+                         + ioe.toString());
+      return null;
+    }
+    return result;
+  }
+
+  // Returns the arguments for the next game in the queue, or null if
+  // there are no more. Blank lines and lines starting with # are skipped.
+  private String[] nextQueuedGame (File queue, List<String> lines)
+  {
+    if (null != lines) {
+      while (!lines.isEmpty()) {
+        String line = lines.remove(0).trim();
+        if (line.length() > 0 && !line.startsWith("#"))
+          return line.split("\\s+");
+      }
+      return null;
+    }
+    // watched directory
+    while (true) {
+      File[] files = queue.listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept (File dir, String name)
+        {
+          return name.endsWith(".game");
+        }
+      });
+      if (null != files && files.length > 0) {
+        Arrays.sort(files);
+        File next = files[0];
+        List<String> content = readQueueFile(next);
+        next.renameTo(new File(next.getPath() + ".done"));
+        String[] spec = (null == content) ? null : nextQueuedGame(queue, content);
+        if (null != spec)
+          return spec;
+        continue;
+      }
+      File stop = new File(queue, "stop");
+      if (stop.exists()) {
+        stop.delete();
+        return null;
+      }
+      try {
+        Thread.sleep(queuePollMillis);
+      }
+      catch (InterruptedException ie) {
+        return null;
+      }
+    }
+  }
+
+  // records the setup time of a queued game
+  private void setupComplete ()
+  {
+    if (setupStart > 0l)
+      setupMillis = System.currentTimeMillis() - setupStart;
+  }
+
   private void waitForSession ()
   {
     if (session != null)
@@ -142,7 +315,9 @@ public class CompetitionSetupService
 
   // handles the server CLI as described at
   // https://github.com/powertac/powertac-server/wiki/Server-configuration
-  private void processCli (String[] args)
+  // Returns an error message, which has already been printed or logged,
+  // or null if a session was started.
+  private String processCli (String[] args)
   {
     // set up command-line options
     OptionParser parser = new OptionParser();
@@ -167,15 +342,18 @@ public class CompetitionSetupService
         parser.accepts("jms-url").withRequiredArg().ofType(String.class);
     OptionSpec<String> inputQueue =
         parser.accepts("input-queue").withRequiredArg().ofType(String.class);
+    OptionSpec<String> queuePrefixOption =
+        parser.accepts("queue-prefix").withRequiredArg().ofType(String.class);
     OptionSpec<String> brokerList =
         parser.accepts("brokers").withRequiredArg().withValuesSeparatedBy(',');
 
-    // do the parse
-    OptionSet options = parser.parse(args);
-
     try {
+      // do the parse
+      OptionSet options = parser.parse(args);
+
       // process common options
       seedSource = null;
+      queuePrefix = options.valueOf(queuePrefixOption);
       String logSuffix = options.valueOf(logSuffixOption);
       controllerURL = options.valueOf(controllerOption);
       Integer game = options.valueOf(gameOpt);
@@ -197,7 +375,7 @@ public class CompetitionSetupService
       
       if (options.has(bootOutput)) {
         // bootstrap session
-        bootSession(options.valueOf(bootOutput),
+        return bootSession(options.valueOf(bootOutput),
                     serverConfig,
                     logSuffix,
                     options.valueOf(seedData),
@@ -205,7 +383,7 @@ public class CompetitionSetupService
       }
       else if (options.has("sim")) {
         // sim session
-        simSession(options.valueOf(bootData),
+        return simSession(options.valueOf(bootData),
                    serverConfig,
                    options.valueOf(jmsUrl),
                    logSuffix,
@@ -216,12 +394,14 @@ public class CompetitionSetupService
       }
       else {
         // Must be either boot or sim
-        System.err.println("Must provide either --boot or --sim to run server");
-        System.exit(1);
+        System.err.println(NO_SESSION_TYPE);
+        return NO_SESSION_TYPE;
       }
     }
     catch (OptionException e) {
-      System.err.println("Bad command argument: " + e.toString());
+      String error = "Bad command argument: " + e.toString();
+      System.err.println(error);
+      return error;
     }
   }
 
@@ -383,6 +563,13 @@ public class CompetitionSetupService
 
     int minCount = -1;
     int expCount = -1;
+    StateFileIndex index = StateFileIndex.get(seedSource);
+    if (index != null) {
+      minCount = index.getMinimumTimeslotCount();
+      expCount = index.getExpectedTimeslotCount();
+      setTimeslotCounts(minCount, expCount);
+      return;
+    }
     try {
       BufferedReader br = new BufferedReader(new FileReader(seedSource));
       String line;
@@ -401,20 +588,25 @@ public class CompetitionSetupService
         }
       }
       br.close();
-      if (minCount != -1) {
-        serverProps.setProperty("common.competition.minimumTimeslotCount",
-            minCount);
-      }
-      if (expCount != -1) {
-        serverProps.setProperty("common.competition.expectedTimeslotCount",
-            expCount);
-      }
+      setTimeslotCounts(minCount, expCount);
     }
     catch(IOException e) {
       log.error("Cannot load minimumTimeslotCount and "
           + "expectedTimeslotCount from " + seedSource);
     }
   }
+
+  private void setTimeslotCounts (int minCount, int expCount)
+  {
+    if (minCount != -1) {
+      serverProps.setProperty("common.competition.minimumTimeslotCount",
+          minCount);
+    }
+    if (expCount != -1) {
+      serverProps.setProperty("common.competition.expectedTimeslotCount",
+          expCount);
+    }
+  }
   
   private void loadSeedsMaybe ()
   {
@@ -447,8 +639,10 @@ public class CompetitionSetupService
       baseTime = getBaseTimeXML(weatherData);
     } else if (weatherData.endsWith(".state")) {
       baseTime = getBaseTimeState(weatherData);
+    } else if (weatherData.endsWith(WeatherStore.EXTENSION)) {
+      baseTime = getBaseTimeBinary(weatherData);
     } else {
-      log.warn("Only XML and state files are allowed for weather data");
+      log.warn("Only XML, state and wbin files are allowed for weather data");
     }
 
     if (baseTime != null) {
@@ -488,6 +682,12 @@ public class CompetitionSetupService
 
   private String getBaseTimeState(String weatherData)
   {
+    StateFileIndex index = StateFileIndex.get(weatherData);
+    if (index != null && index.getBaseTime() >= 0) {
+      return new SimpleDateFormat("yyyy-MM-dd").format(
+          new Date(index.getBaseTime()));
+    }
+
     BufferedReader br = null;
     try {
       br = new BufferedReader(
@@ -519,6 +719,20 @@ public class CompetitionSetupService
     return null;
   }
 
+  private String getBaseTimeBinary(String weatherData)
+  {
+    try {
+      WeatherStore store = WeatherStore.open(weatherData);
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return format.format(new Date(store.getStartMillis()));
+    } catch (IOException e) {
+      log.error("Error extracting BaseTime from : " + weatherData
+                + ": " + e.toString());
+    }
+    return null;
+  }
+
   private URL makeUrl (String name) throws MalformedURLException
   {
     String urlName = name;
@@ -528,15 +742,20 @@ public class CompetitionSetupService
     return new URL(urlName);
   }
 
-  // Runs a bootstrap session
+  // Runs a bootstrap session. The dataset is compressed if the file name
+  // ends in ".gz".
   private void startBootSession (File bootstrapFile) throws IOException
   {
-    final FileWriter bootWriter = new FileWriter(bootstrapFile);
+    final Writer bootWriter = BootstrapDataConverter.openWriter(bootstrapFile);
+    final SessionContext context = newSessionContext();
     session = new Thread() {
       @Override
       public void run () {
+        context.enter();
+        cc.setSessionContext(context);
         cc.setAuthorizedBrokerList(new ArrayList<String>());
         preGame();
+        setupComplete();
         cc.runOnce(true);
         saveBootstrapData(bootWriter);
       }
@@ -549,13 +768,18 @@ public class CompetitionSetupService
                                 final String inputQueueName,
                                 final URL bootDataset)
   {
+    final SessionContext context = newSessionContext();
     session = new Thread() {
       @Override
       public void run () {
+        context.enter();
+        cc.setSessionContext(context);
         cc.setAuthorizedBrokerList(brokers);
         cc.setInputQueueName(inputQueueName);
-        if (preGame(bootDataset)) {
-          cc.setBootstrapDataset(processBootDataset(bootDataset));
+        BootstrapDataReader bootData = loadBootDataset(bootDataset);
+        if (null != bootData) {
+          cc.setBootstrapDataset(decodeBootItems(bootData.getItemXml()));
+          setupComplete();
           cc.runOnce(false);
           gameId += 1;
         }        
@@ -564,6 +788,14 @@ public class CompetitionSetupService
     session.start();
   }  
 
+  // Creates the context of a new session, which keeps its log files and
+  // queue names apart from those of other sessions
+  private SessionContext newSessionContext ()
+  {
+    sessionCount += 1;
+    return new SessionContext("session-" + sessionCount, queuePrefix);
+  }
+
   /**
    * Pre-game server setup - creates the basic configuration elements
    * to make them accessible to the web-based game-setup functions.
@@ -618,45 +850,65 @@ public class CompetitionSetupService
    * Sets up the simulator, with config overrides provided in a file.
    */
   public boolean preGame (URL bootFile)
+  {
+    return null != loadBootDataset(bootFile);
+  }
+
+  // Runs the pre-game setup, then reads the boot dataset in a single pass
+  // and applies its competition and bootstrap-state. A dataset whose name
+  // ends in ".gz" is decompressed as it is read. Returns the dataset,
+  // whose items are still to be decoded, or null on error.
+  private BootstrapDataReader loadBootDataset (URL bootFile)
   {
     log.info("preGame(File) - start");
     // run the basic pre-game setup
     preGame();
 
-    // read the config info from the bootReader - We need to find a Competition
-    Competition bootstrapCompetition = null;
-    XPathFactory factory = XPathFactory.newInstance();
-    XPath xPath = factory.newXPath();
+    BootstrapDataReader bootData = new BootstrapDataReader();
+    InputStream input = null;
     try {
-      // first grab the Competition
-      XPathExpression exp =
-          xPath.compile("/powertac-bootstrap-data/config/competition");
-      NodeList nodes = (NodeList)exp.evaluate(new InputSource(bootFile.openStream()),
-                                     XPathConstants.NODESET);
-      String xml = nodeToString(nodes.item(0));
-      bootstrapCompetition = (Competition)messageConverter.fromXML(xml);
-
-      // next, grab the bootstrap-state and add it to the config
-      exp = xPath.compile("/powertac-bootstrap-data/bootstrap-state/properties");
-      nodes = (NodeList)exp.evaluate(new InputSource(bootFile.openStream()),
-                                     XPathConstants.NODESET);
-      if (null != nodes && nodes.getLength() > 0) {
-        // handle the case where there is no bootstrap-state clause
-        xml = nodeToString(nodes.item(0));
-        Properties bootState = (Properties)messageConverter.fromXML(xml);
-        serverProps.addProperties(bootState);
-      }
-    }
-    catch (XPathExpressionException xee) {
-      log.error("preGame: Error reading boot dataset: " + xee.toString());
-      System.out.println("preGame: Error reading boot dataset: " + xee.toString());
-      return false;
+      input = bootFile.openStream();
+      input = BootstrapDataConverter.openInput(input, bootFile.getPath());
+      bootData.read(input);
+    }
+    catch (XMLStreamException xse) {
+      log.error("preGame: Error reading boot dataset: " + xse.toString());
+      System.out.println("preGame: Error reading boot dataset: " + xse.toString());
+      return null;
     }
     catch (IOException ioe) {
       log.error("preGame: Error opening file " + bootFile + ": " + ioe.toString());
       System.out.println("preGame: Error opening file " + bootFile + ": " + ioe.toString());
+      return null;
+    }
+    finally {
+      closeQuietly(input);
+    }
+    if (!applyBootConfig(bootData))
+      return null;
+    return bootData;
+  }
+
+  // Applies the competition and bootstrap-state of a boot dataset
+  private boolean applyBootConfig (BootstrapDataReader bootData)
+  {
+    // We need to find a Competition
+    if (null == bootData.getCompetitionXml()) {
+      log.error("preGame: No competition in boot dataset");
+      System.out.println("preGame: No competition in boot dataset");
       return false;
     }
+    Competition bootstrapCompetition =
+        (Competition)messageConverter.fromXML(bootData.getCompetitionXml());
+
+    // next, add the bootstrap-state to the config
+    if (null != bootData.getPropertiesXml()) {
+      // handle the case where there is no bootstrap-state clause
+      Properties bootState =
+          (Properties)messageConverter.fromXML(bootData.getPropertiesXml());
+      serverProps.addProperties(bootState);
+    }
+
     // update the existing Competition - should be the current competition
     Competition.currentCompetition().update(bootstrapCompetition);
     timeService.setClockParameters(competition);
@@ -664,6 +916,18 @@ public class CompetitionSetupService
     return true;
   }
 
+  private void closeQuietly (Closeable stream)
+  {
+    if (null == stream)
+      return;
+    try {
+      stream.close();
+    }
+    catch (IOException ioe) {
+      log.warn("Error closing stream: " + ioe.toString());
+    }
+  }
+
   // method broken out to simplify testing
   void saveBootstrapData (Writer datasetWriter)
   {
@@ -720,48 +984,67 @@ public class CompetitionSetupService
     return output;
   }
 
-  // Extracts a bootstrap dataset from its file
-  private ArrayList<Object> processBootDataset (URL bootDataset)
+  // Converts the items of a bootstrap dataset. Large datasets are split
+  // into chunks that are decoded in parallel, and the results are
+  // reassembled in the original order. The number of threads is given by
+  // server.competitionSetupService.decodeThreads, by default the number
+  // of processors.
+  ArrayList<Object> decodeBootItems (final List<String> items)
   {
-    // Read and convert the bootstrap dataset
-    ArrayList<Object> result = new ArrayList<Object>();
-    XPathFactory factory = XPathFactory.newInstance();
-    XPath xPath = factory.newXPath();
+    log.info("Found " + items.size() + " bootstrap nodes");
+    int threads =
+        serverProps.getIntegerProperty("server.competitionSetupService.decodeThreads",
+                                       Runtime.getRuntime().availableProcessors());
+    ArrayList<Object> result = new ArrayList<Object>(items.size());
+    if (threads <= 1 || items.size() < 2 * minDecodeChunk) {
+      result.addAll(decodeChunk(items));
+      return result;
+    }
+
+    // several chunks per thread, to even out the load
+    int chunkSize = Math.max(minDecodeChunk,
+                             (items.size() + 4 * threads - 1) / (4 * threads));
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
     try {
-      InputSource source = new InputSource(bootDataset.openStream());
-      // we want all the children of the bootstrap node
-      XPathExpression exp =
-          xPath.compile("/powertac-bootstrap-data/bootstrap/*");
-      NodeList nodes = (NodeList)exp.evaluate(source, XPathConstants.NODESET);
-      log.info("Found " + nodes.getLength() + " bootstrap nodes");
-      // Each node is a bootstrap data item
-      for (int i = 0; i < nodes.getLength(); i++) {
-        String xml = nodeToString(nodes.item(i));
-        Object msg = messageConverter.fromXML(xml);
-        result.add(msg);
+      List<Future<List<Object>>> chunks = new ArrayList<Future<List<Object>>>();
+      for (int start = 0; start < items.size(); start += chunkSize) {
+        final List<String> chunk =
+            items.subList(start, Math.min(start + chunkSize, items.size()));
+        chunks.add(pool.submit(new Callable<List<Object>>() {
+          @Override
+          public List<Object> call ()
+          {
+            return decodeChunk(chunk);
+          }
+        }));
+      }
+      for (Future<List<Object>> chunk : chunks) {
+        result.addAll(chunk.get());
       }
     }
-    catch (XPathExpressionException xee) {
-      log.error("runOnce: Error reading config file: " + xee.toString());
+    catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      throw new RuntimeException(cause);
     }
-    catch (IOException ioe) {
-      log.error("runOnce: reset fault: " + ioe.toString());
+    catch (InterruptedException ie) {
+      throw new RuntimeException("Interrupted decoding bootstrap data", ie);
+    }
+    finally {
+      pool.shutdown();
     }
+    log.info("Decoded " + result.size() + " bootstrap items on "
+             + threads + " threads");
     return result;
   }
 
-  // Converts an xml node into a string that can be converted by XStream
-  private String nodeToString(Node node) {
-    StringWriter sw = new StringWriter();
-    try {
-      Transformer t = TransformerFactory.newInstance().newTransformer();
-      t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-      t.setOutputProperty(OutputKeys.INDENT, "no");
-      t.transform(new DOMSource(node), new StreamResult(sw));
-    }
-    catch (TransformerException te) {
-      log.error("nodeToString Transformer Exception " + te.toString());
+  private List<Object> decodeChunk (List<String> chunk)
+  {
+    List<Object> result = new ArrayList<Object>(chunk.size());
+    for (String xml : chunk) {
+      result.add(messageConverter.fromXML(xml));
     }
-    return sw.toString();
+    return result;
   }
 }
@@ -1,5 +1,6 @@
 package org.powertac.server;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -57,6 +58,13 @@ public class JmsManagementService
   private String jmsBrokerName = "simJmsProvider";
   private long maxQueueDepth = 1000;
 
+  // if true, stop() leaves the provider running for the next game
+  private boolean keepProviderAlive = false;
+
+  // queues reported as unresponsive by their senders
+  private Set<String> unresponsiveQueues =
+      Collections.synchronizedSet(new HashSet<String>());
+
   private BrokerService getProvider ()
   {
     return BrokerRegistry.getInstance().lookup(getJmsBrokerName());
@@ -112,6 +120,15 @@ public class JmsManagementService
       CachingConnectionFactory cachingConnectionFactory = (CachingConnectionFactory) connectionFactory;
       cachingConnectionFactory.resetConnection();
     }
+
+    if (keepProviderAlive) {
+      // the last messages of the game, SimEnd among them, must reach the
+      // brokers before the next game's queues replace this game's
+      log.info("stop - keeping JMS provider for the next game");
+      waitForQueuesToDrain(3000);
+      removeQueues();
+      return;
+    }
     
     try {
       // let's wait a few seconds before shutting down
@@ -241,6 +258,21 @@ public class JmsManagementService
     this.servingJms = servingJms;
   }
 
+  /**
+   * If true, stop() leaves the JMS provider running, so a server that runs
+   * a series of games does not restart it for each one. The caller must
+   * then call stopProvider() when the last game is finished.
+   */
+  public void setKeepProviderAlive (boolean keepProviderAlive)
+  {
+    this.keepProviderAlive = keepProviderAlive;
+  }
+
+  public boolean isKeepProviderAlive ()
+  {
+    return keepProviderAlive;
+  }
+
   /**
    * @return the jmsBrokerUrl
    */
@@ -295,24 +327,43 @@ public class JmsManagementService
     this.maxQueueDepth = maxQueueDepth;
   }
 
-  private boolean destinationLimitReached (Destination dst)
+  private long queueDepth (Destination dst)
   {
     DestinationStatistics stats = dst.getDestinationStatistics();
-    long depth = stats.getEnqueues().getCount()
-                      - stats.getDequeues().getCount();
+    return stats.getEnqueues().getCount() - stats.getDequeues().getCount();
+  }
+
+  private boolean destinationLimitReached (Destination dst)
+  {
+    long depth = queueDepth(dst);
     log.debug("destination " + dst.getName() + " - depth:" + depth);
     return depth > getMaxQueueDepth();
   }
 
+  /**
+   * Records a queue that cannot keep up with its outgoing traffic, as
+   * seen from the sending side. It will be included in the result of the
+   * next call to processQueues().
+   */
+  public void reportUnresponsiveQueue (String queueName)
+  {
+    unresponsiveQueues.add(queueName);
+  }
+
   public Set<String> processQueues ()
   {
+    Set<String> badQueues = new HashSet<String>();
+    synchronized (unresponsiveQueues) {
+      badQueues.addAll(unresponsiveQueues);
+      unresponsiveQueues.clear();
+    }
+
     BrokerService brokerService = getProvider();
     if (brokerService == null) {
       log.debug("processQueues - JMS Server has not been started");
-      return null;
+      return badQueues;
     }
 
-    Set<String> badQueues = new HashSet<String>();
     try {
       Broker broker = brokerService.getBroker();
       Map<ActiveMQDestination, Destination> dstMap = broker.getDestinationMap();
@@ -332,6 +383,74 @@ public class JmsManagementService
     return badQueues;
   }
 
+  // Waits until every queue that still has a consumer is empty, or until
+  // the timeout runs out. Queues nobody reads from are not waited for,
+  // since they will never drain.
+  private void waitForQueuesToDrain (long timeout)
+  {
+    BrokerService brokerService = getProvider();
+    if (brokerService == null) {
+      return;
+    }
+    long deadline = System.currentTimeMillis() + timeout;
+    try {
+      Broker broker = brokerService.getBroker();
+      while (true) {
+        int pending = 0;
+        Map<ActiveMQDestination, Destination> dstMap =
+            new HashMap<ActiveMQDestination, Destination>(broker.getDestinationMap());
+        for (Map.Entry<ActiveMQDestination, Destination> entry: dstMap.entrySet()) {
+          Destination destination = entry.getValue();
+          if (entry.getKey().isQueue()
+              && !destination.getConsumers().isEmpty()
+              && queueDepth(destination) > 0) {
+            pending += 1;
+          }
+        }
+        if (pending == 0) {
+          return;
+        }
+        if (System.currentTimeMillis() >= deadline) {
+          log.warn("stop - " + pending + " queues not drained after "
+                   + timeout + " msec");
+          return;
+        }
+        Thread.sleep(50);
+      }
+    }
+    catch (InterruptedException e) {
+      log.info("Interrupted while waiting for queues to drain");
+      Thread.currentThread().interrupt();
+    }
+    catch (Exception e) {
+      log.error("Failed to check queues after the game", e);
+    }
+  }
+
+  // Removes all queues from the provider, along with any messages still
+  // in them, and forgets the queues reported as unresponsive.
+  private void removeQueues ()
+  {
+    unresponsiveQueues.clear();
+    BrokerService brokerService = getProvider();
+    if (brokerService == null) {
+      return;
+    }
+    try {
+      Broker broker = brokerService.getBroker();
+      Map<ActiveMQDestination, Destination> dstMap =
+          new HashMap<ActiveMQDestination, Destination>(broker.getDestinationMap());
+      for (Map.Entry<ActiveMQDestination, Destination> entry: dstMap.entrySet()) {
+        if (entry.getKey().isQueue()) {
+          deleteDestination(broker, entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    catch (Exception e) {
+      log.error("Failed to remove queues after the game", e);
+    }
+  }
+
   private void deleteDestination (Broker broker,
                                   ActiveMQDestination amqDestination,
                                   Destination destination) throws Exception
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+/**
+ * Fixed-bucket histogram of latencies, recorded in nanoseconds and
+ * reported in msec. Bucket upper bounds are 1, 2, 5, 10, 20, 50, 100,
+ * 200, 500 and 1000 msec, with a final bucket for anything longer.
+ * Negative values (events that happened early) are counted in the
+ * first bucket. Methods are synchronized, so events can be recorded
+ * from any thread.
+ */
+public class LatencyHistogram
+{
+  static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+  private long[] counts = new long[BOUNDS.length + 1];
+  private long total = 0l;
+  private long sum = 0l;
+  private long max = Long.MIN_VALUE;
+
+  /**
+   * Records a single latency value in nanoseconds.
+   */
+  public synchronized void record (long nanos)
+  {
+    long msec = nanos / 1000000;
+    int index = 0;
+    while (index < BOUNDS.length && msec >= BOUNDS[index])
+      index += 1;
+    counts[index] += 1;
+    total += 1;
+    sum += nanos;
+    if (nanos > max)
+      max = nanos;
+  }
+
+  /**
+   * Returns the number of values recorded.
+   */
+  public synchronized long getCount ()
+  {
+    return total;
+  }
+
+  /**
+   * Returns the count in the given bucket, where bucket i holds values
+   * below BOUNDS[i] msec, and the last bucket holds the rest.
+   */
+  public synchronized long getBucketCount (int index)
+  {
+    return counts[index];
+  }
+
+  /**
+   * Returns the largest value recorded in msec, or 0 if there are none.
+   */
+  public synchronized long getMaxMillis ()
+  {
+    return (total == 0) ? 0l : max / 1000000;
+  }
+
+  /**
+   * Returns the mean of the recorded values in msec.
+   */
+  public synchronized double getMeanMillis ()
+  {
+    return (total == 0) ? 0.0 : sum / (double)total / 1000000.0;
+  }
+
+  /**
+   * Clears all counts.
+   */
+  public synchronized void clear ()
+  {
+    counts = new long[BOUNDS.length + 1];
+    total = 0l;
+    sum = 0l;
+    max = Long.MIN_VALUE;
+  }
+
+  @Override
+  public synchronized String toString ()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("n=").append(total)
+      .append(" mean=").append(String.format("%.2f", getMeanMillis()))
+      .append(" max=").append(getMaxMillis());
+    for (int i = 0; i < counts.length; i++) {
+      sb.append(i < BOUNDS.length ? " <" + BOUNDS[i] : " >=" + BOUNDS[i - 1])
+        .append(":").append(counts[i]);
+    }
+    return sb.toString();
+  }
+}
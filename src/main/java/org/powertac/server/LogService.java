@@ -16,8 +16,12 @@
 package org.powertac.server;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
-//import org.apache.log4j.Appender;
+import org.apache.log4j.Appender;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Level;
@@ -25,6 +29,8 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.PropertyConfigurator;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
 import org.springframework.stereotype.Service;
 
 /**
@@ -52,6 +58,15 @@ import org.springframework.stereotype.Service;
  * object, op (used only for update) is the operation, and the args are the arguments for
  * that operation. The logger format will prepend the current offset from the beginning 
  * of the simulation in milliseconds.</p>
+ * <p>
+ * A third log, "hhhxxx.profile", records the time spent in each part of
+ * each timeslot, as written by StepProfiler to the "Profile" logger.</p>
+ * <p>
+ * Several sessions (see SessionContext) can log at once. Each session
+ * started with startLog() from a thread in the session gets its own set of
+ * files, which receive the events logged by the session's threads, along
+ * with those of threads outside any session. A log started outside any
+ * session replaces all others, as it did before there were sessions.</p>
  * @author John Collins
  */
 @Service
@@ -59,6 +74,12 @@ public class LogService
 {
   //private String configFilename = "src/main/resources/log.config";
   private String filenamePrefix = "powertac";
+  private String currentId = null;
+
+  // open logs by session id; the key of a log started outside any
+  // session is null
+  private Map<String, SessionLog> sessionLogs =
+      new HashMap<String, SessionLog>();
   
   public LogService ()
   {
@@ -86,37 +107,100 @@ public class LogService
     return Logger.getLogger("State");
   }
 
-  public void startLog (String id)
+  public Logger getProfileLogger ()
+  {
+    return Logger.getLogger("Profile");
+  }
+
+  /**
+   * Returns the name of the log file with the given extension for the
+   * current game, for example "log/hhh-xxx.trace" for "trace". The current
+   * game is the one of the caller's session, if it has started a log.
+   */
+  public synchronized String getLogFilename (String extension)
+  {
+    SessionLog sessionLog = sessionLogs.get(SessionContext.currentId());
+    String id = (null == sessionLog) ? currentId : sessionLog.id;
+    return getLogFilename(id, extension);
+  }
+
+  private String getLogFilename (String id, String extension)
   {
+    return "log/" + filenamePrefix + "-" + id + "." + extension;
+  }
+
+  public synchronized void startLog (String id)
+  {
+    String session = SessionContext.currentId();
+    currentId = id;
     Logger root = Logger.getRootLogger();
     Logger state = getStateLogger();
-    state.setAdditivity(false);
-    root.removeAllAppenders();
-    state.removeAllAppenders();
+    Logger profile = getProfileLogger();
+    // a new log replaces the caller's session log and any log started
+    // outside a session; outside a session it replaces all of them
+    closeSessionLog(session);
+    closeSessionLog(null);
+    if (null == session) {
+      for (String other : new ArrayList<String>(sessionLogs.keySet()))
+        closeSessionLog(other);
+    }
+    if (sessionLogs.isEmpty()) {
+      state.setAdditivity(false);
+      profile.setAdditivity(false);
+      root.removeAllAppenders();
+      state.removeAllAppenders();
+      profile.removeAllAppenders();
+    }
+    SessionLog sessionLog = new SessionLog(id);
     try {
       PatternLayout logLayout = new PatternLayout("%r %-5p %c{2}: %m%n");
-      FileAppender logFile
-          = new FileAppender(logLayout,
-                             ("log/" + filenamePrefix + "-" + id + ".trace"),
-                             false);
-      root.addAppender(logFile);
+      sessionLog.add(root,
+                     new FileAppender(logLayout,
+                                      getLogFilename(id, "trace"),
+                                      false),
+                     session);
       PatternLayout stateLayout = new PatternLayout("%r:%m%n");
-      FileAppender stateFile
-          = new FileAppender(stateLayout,
-                             ("log/" + filenamePrefix + "-" + id + ".state"),
-                             false);
-      state.addAppender(stateFile);
+      sessionLog.add(state,
+                     new FileAppender(stateLayout,
+                                      getLogFilename(id, "state"),
+                                      false),
+                     session);
+      sessionLog.add(profile,
+                     new FileAppender(stateLayout,
+                                      getLogFilename(id, "profile"),
+                                      false),
+                     session);
     }
     catch (IOException ioe) {
       System.out.println("Can't open log file");
       System.exit(0);
     }
+    sessionLogs.put(session, sessionLog);
   }
 
-  public void stopLog ()
+  /**
+   * Closes the log of the caller's session. When no logs are left open,
+   * log4j is shut down.
+   */
+  public synchronized void stopLog ()
   {
-    stopLogger(Logger.getRootLogger());
-    stopLogger(Logger.getLogger("State"));
+    closeSessionLog(SessionContext.currentId());
+    if (sessionLogs.isEmpty()) {
+      stopLogger(Logger.getRootLogger());
+    }
+  }
+
+  // Removes and closes the appenders of a session log
+  private void closeSessionLog (String session)
+  {
+    SessionLog sessionLog = sessionLogs.remove(session);
+    if (null == sessionLog)
+      return;
+    for (int i = 0; i < sessionLog.loggers.size(); i++) {
+      Appender appender = sessionLog.appenders.get(i);
+      sessionLog.loggers.get(i).removeAppender(appender);
+      appender.close();
+    }
   }
   
   private void stopLogger (Logger logger)
@@ -128,12 +212,59 @@ public class LogService
   private void reset() {
     Logger root = Logger.getRootLogger();
     Logger state = getStateLogger();
+    Logger profile = getProfileLogger();
     root.removeAllAppenders();
     state.removeAllAppenders();
+    profile.removeAllAppenders();
 
     ConsoleAppender appender = new ConsoleAppender();
     appender.setThreshold(Level.OFF);
     root.addAppender(appender);
     state.addAppender(appender);
+    profile.addAppender(appender);
+  }
+
+  // The appenders of one session's log
+  private static class SessionLog
+  {
+    String id;
+    List<Logger> loggers = new ArrayList<Logger>();
+    List<Appender> appenders = new ArrayList<Appender>();
+
+    SessionLog (String id)
+    {
+      super();
+      this.id = id;
+    }
+
+    void add (Logger logger, Appender appender, String session)
+    {
+      if (null != session)
+        appender.addFilter(new SessionFilter(session));
+      logger.addAppender(appender);
+      loggers.add(logger);
+      appenders.add(appender);
+    }
+  }
+
+  // Drops the events of other sessions
+  private static class SessionFilter extends Filter
+  {
+    private String session;
+
+    SessionFilter (String session)
+    {
+      super();
+      this.session = session;
+    }
+
+    @Override
+    public int decide (LoggingEvent event)
+    {
+      Object tag = event.getMDC(SessionContext.MDC_KEY);
+      if (null == tag || session.equals(tag))
+        return NEUTRAL;
+      return DENY;
+    }
   }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2026 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the serialized messages for one remote broker during a timeslot
+ * phase, so they can be sent as a single JMS TextMessage.
+ * <p>
+ * The envelope is a single XML element whose children are the individual
+ * messages, in the order in which they were sent, exactly as they would
+ * have been sent on their own:
+ * <pre>
+ *   &lt;message-batch count="3"&gt;
+ *   &lt;timeslot-update ... /&gt;
+ *   &lt;weather-report ... /&gt;
+ *   &lt;timeslot-complete ... /&gt;
+ *   &lt;/message-batch&gt;
+ * </pre>
+ * A broker unpacks a batch by parsing the outer element and handing the
+ * XML of each child element, in document order, to its message converter.
+ * The count attribute gives the number of children. A batch containing
+ * only one message is sent as the bare message, without the envelope, and
+ * messages sent outside a timeslot (login, setup, pause) are never
+ * batched, so brokers must accept both forms.</p>
+ */
+class MessageBatch
+{
+  static final String ELEMENT = "message-batch";
+
+  private String queueName;
+  private List<String> items = new ArrayList<String>();
+
+  MessageBatch (String queueName)
+  {
+    super();
+    this.queueName = queueName;
+  }
+
+  String getQueueName ()
+  {
+    return queueName;
+  }
+
+  void add (String text)
+  {
+    items.add(text);
+  }
+
+  int size ()
+  {
+    return items.size();
+  }
+
+  /**
+   * Returns the text to be sent, the envelope if there is more than one
+   * message, or the bare message if there is only one.
+   */
+  String toXml ()
+  {
+    if (items.size() == 1)
+      return items.get(0);
+    int length = 40;
+    for (String item : items)
+      length += item.length() + 1;
+    StringBuilder buf = new StringBuilder(length);
+    buf.append('<').append(ELEMENT).append(" count=\"")
+       .append(items.size()).append("\">\n");
+    for (String item : items)
+      buf.append(item).append('\n');
+    buf.append("</").append(ELEMENT).append('>');
+    return buf.toString();
+  }
+}
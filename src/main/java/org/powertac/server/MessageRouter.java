@@ -15,15 +15,20 @@
  */
 package org.powertac.server;
 
-import static org.powertac.util.MessageDispatcher.dispatch;
-
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.log4j.Logger;
 import org.powertac.common.Broker;
 import org.powertac.common.Competition;
@@ -36,28 +41,57 @@ public class MessageRouter implements InitializationService
 {
   static private Logger log = Logger.getLogger(MessageRouter.class);
 
-  // Routing data
-  private HashMap<Class<?>, Set<Object>> registrations =
-      new HashMap<Class<?>, Set<Object>>();
+  // Routing data. The map is never modified once published; registration
+  // builds a new one, so JMS listener threads can route without locking.
+  private volatile Map<Class<?>, Route> routes =
+      new HashMap<Class<?>, Route>();
+
+  // Broker accessors by message type. These depend only on the message
+  // classes, so they survive from one game to the next.
+  private ConcurrentMap<Class<?>, BrokerAccessor> brokerAccessors =
+      new ConcurrentHashMap<Class<?>, BrokerAccessor>();
 
   /**
    * returns the registrations for the given message
    */
   public Set<Object> getRegistrations(Object message)
   {
-    return registrations.get(message.getClass());
+    Route route = routes.get(message.getClass());
+    if (null == route)
+      return null;
+    return route.listeners;
   }
   
   /* (non-Javadoc)
    * @see org.powertac.common.interfaces.BrokerProxy#registerBrokerMarketListener(org.powertac.common.interfaces.BrokerMessageListener)
    */
-  public void registerBrokerMessageListener(Object listener, Class<?> clazz) {
-    Set<Object> targetSet= registrations.get(clazz);
-    if (null == targetSet) {
-      targetSet = new HashSet<Object>();
-      registrations.put(clazz, targetSet);
+  public synchronized void registerBrokerMessageListener(Object listener,
+                                                         Class<?> clazz) {
+    Route route = routes.get(clazz);
+    if (null != route && route.listeners.contains(listener))
+      return;
+    Invoker invoker = Invoker.resolve(listener, clazz);
+    if (null == invoker) {
+      log.error("No handleMessage(" + clazz.getSimpleName() + ") in "
+                + listener.getClass().getName());
+      return;
     }
-    targetSet.add(listener);
+    HashMap<Class<?>, Route> newRoutes = new HashMap<Class<?>, Route>(routes);
+    newRoutes.put(clazz, new Route(route, listener, invoker));
+    routes = newRoutes;
+    accessorFor(clazz);
+  }
+
+  // Returns the broker accessor for a message type, creating it if needed.
+  // Normally this happens at registration time.
+  private BrokerAccessor accessorFor (Class<?> clazz)
+  {
+    BrokerAccessor accessor = brokerAccessors.get(clazz);
+    if (null == accessor) {
+      accessor = new BrokerAccessor(clazz);
+      brokerAccessors.put(clazz, accessor);
+    }
+    return accessor;
   }
 
   /**
@@ -65,10 +99,10 @@ public class MessageRouter implements InitializationService
    * once per game.
    */
   @Override
-  public void setDefaults ()
+  public synchronized void setDefaults ()
   {
     // initialize the registrations
-    registrations = new HashMap<Class<?>, Set<Object>>();
+    routes = new HashMap<Class<?>, Route>();
   }
 
   @Override
@@ -86,29 +120,19 @@ public class MessageRouter implements InitializationService
     String username = "unknown";
     Broker broker = null;
     if (!byPassed) {
-      try {
-        broker = (Broker)PropertyUtils.getSimpleProperty(message, "broker");
+      broker = accessorFor(message.getClass()).getBroker(message);
+      if (null != broker)
         username = broker.getUsername();
-      }
-      catch (IllegalAccessException e) {
-        log.error("Failed to extract broker", e);
-      }
-      catch (InvocationTargetException e) {
-        log.error("Failed to extract broker", e);
-      }
-      catch (NoSuchMethodException e) {
-        log.error("Failed to extract broker", e);
-      }
     }
     if (byPassed || (broker != null && broker.isEnabled())) {     
       log.debug("route(Object) - routing " + message.getClass().getSimpleName() + " from " + username);
-      Set<Object> targets = registrations.get(message.getClass());
-      if (targets == null) {
+      Route route = routes.get(message.getClass());
+      if (route == null) {
         log.warn("no targets for message of type " + message.getClass().getSimpleName());
       }
       else {
-        for (Object target: targets) {
-          dispatch(target, "handleMessage", message);
+        for (Invoker invoker: route.invokers) {
+          invoker.invoke(message);
         }
         routed = true;
       }
@@ -116,4 +140,158 @@ public class MessageRouter implements InitializationService
     log.debug("route(Object) - routed:" + routed);
     return routed;
   }
+
+  /**
+   * Extracts the broker from messages of one type, through a handle on
+   * its getBroker() method that is resolved once per type, so there is no
+   * reflection on the routing path.
+   */
+  private static class BrokerAccessor
+  {
+    private static final MethodType GETTER_TYPE =
+        MethodType.methodType(Broker.class, Object.class);
+
+    private Class<?> clazz;
+    private MethodHandle getter = null;
+
+    BrokerAccessor (Class<?> clazz)
+    {
+      super();
+      this.clazz = clazz;
+      try {
+        Method method = clazz.getMethod("getBroker");
+        if (Broker.class.isAssignableFrom(method.getReturnType())) {
+          // public methods of non-public classes need the access check off
+          method.setAccessible(true);
+          getter = MethodHandles.lookup().unreflect(method)
+              .asType(GETTER_TYPE);
+        }
+        else {
+          log.error("getBroker() on " + clazz.getName()
+                    + " does not return a Broker");
+        }
+      }
+      catch (NoSuchMethodException e) {
+        // not necessarily an error, BrokerAuthentication has no broker
+        log.debug("No broker accessor for " + clazz.getName());
+      }
+      catch (IllegalAccessException e) {
+        log.error("Cannot access broker on " + clazz.getName(), e);
+      }
+      catch (SecurityException e) {
+        log.error("Cannot access broker on " + clazz.getName(), e);
+      }
+    }
+
+    Broker getBroker (Object message)
+    {
+      if (null == getter) {
+        log.error("Failed to extract broker from " + clazz.getSimpleName());
+        return null;
+      }
+      try {
+        return (Broker)getter.invokeExact(message);
+      }
+      catch (Throwable thr) {
+        log.error("Failed to extract broker", thr);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * The listeners for one message type, with their handleMessage methods.
+   * Immutable once created.
+   */
+  private static class Route
+  {
+    Set<Object> listeners;
+    List<Invoker> invokers;
+
+    // Creates a route by extending an existing one, which may be null
+    Route (Route previous, Object listener, Invoker invoker)
+    {
+      super();
+      LinkedHashSet<Object> newListeners = new LinkedHashSet<Object>();
+      ArrayList<Invoker> newInvokers = new ArrayList<Invoker>();
+      if (null != previous) {
+        newListeners.addAll(previous.listeners);
+        newInvokers.addAll(previous.invokers);
+      }
+      newListeners.add(listener);
+      newInvokers.add(invoker);
+      listeners = Collections.unmodifiableSet(newListeners);
+      invokers = Collections.unmodifiableList(newInvokers);
+    }
+  }
+
+  /**
+   * A handleMessage method bound to its listener, as a method handle
+   * resolved once when the route is built.
+   */
+  private static class Invoker
+  {
+    private static final MethodType HANDLER_TYPE =
+        MethodType.methodType(void.class, Object.class);
+
+    private Object target;
+    private MethodHandle handle;
+
+    private Invoker (Object target, MethodHandle handle)
+    {
+      super();
+      this.target = target;
+      this.handle = handle;
+    }
+
+    /**
+     * Finds the handleMessage method on the listener that takes the given
+     * message type. An exact match is preferred; otherwise the method
+     * with the most specific parameter type that accepts the message
+     * is used. Returns null if there is no such method.
+     */
+    static Invoker resolve (Object target, Class<?> clazz)
+    {
+      Method best = null;
+      for (Method method : target.getClass().getMethods()) {
+        if (!method.getName().equals("handleMessage"))
+          continue;
+        Class<?>[] params = method.getParameterTypes();
+        if (params.length != 1 || !params[0].isAssignableFrom(clazz))
+          continue;
+        if (null == best
+            || best.getParameterTypes()[0].isAssignableFrom(params[0]))
+          best = method;
+      }
+      if (null == best)
+        return null;
+      try {
+        best.setAccessible(true);
+      }
+      catch (SecurityException e) {
+        log.warn("Cannot suppress access checks on " + best);
+      }
+      try {
+        MethodHandle handle = MethodHandles.lookup().unreflect(best)
+            .bindTo(target).asType(HANDLER_TYPE);
+        return new Invoker(target, handle);
+      }
+      catch (IllegalAccessException iae) {
+        log.error("Cannot call " + best + ": " + iae.toString());
+        return null;
+      }
+    }
+
+    void invoke (Object message)
+    {
+      try {
+        handle.invokeExact(message);
+      }
+      catch (Throwable thr) {
+        log.error("Exception in " + target.getClass().getSimpleName()
+                  + ".handleMessage(" + message.getClass().getSimpleName()
+                  + "): " + thr.toString(), thr);
+      }
+    }
+  }
 }
@@ -58,7 +58,16 @@ public class PowerTacServer
    * </dl>
    * To use a configuration file, simply give the filename as a command-line
    * argument.
-   *  
+   * <p>
+   * To run a series of games in one process, give
+   * <code>--queue</code> followed by a queue file or directory, as
+   * described in {@link CompetitionSetupService}.</p>
+   * <p>
+   * A bootstrap data file whose name ends in <code>.gz</code>, given to
+   * <code>--boot</code> or <code>--boot-data</code>, is written or read
+   * in compressed form. {@link BootstrapDataConverter} converts an
+   * existing dataset between the two forms.</p>
+   *
    */
   public static void main (String[] args)
   {
@@ -1,7 +1,16 @@
 package org.powertac.server;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -10,15 +19,20 @@ import javax.jms.TextMessage;
 
 import org.apache.log4j.Logger;
 import org.powertac.common.Broker;
+import org.powertac.common.Competition;
 import org.powertac.common.IdGenerator;
 import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.config.ConfigurableValue;
 import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.InitializationService;
+import org.powertac.common.interfaces.ServerConfiguration;
 import org.powertac.common.repo.BrokerRepo;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
-public class ServerMessageReceiver implements MessageListener
+public class ServerMessageReceiver
+implements MessageListener, InitializationService
 {
   static private Logger log = Logger.getLogger(ServerMessageReceiver.class);
 
@@ -34,8 +48,39 @@ public class ServerMessageReceiver implements MessageListener
   @Autowired
   private BrokerRepo brokerRepo;
 
-  private Pattern brokerRegex = Pattern.compile("<broker>([A-Za-z0-9_ ]+)</broker>");
-  private Pattern idRegex = Pattern.compile(" id=\"([0-9]+)\"");
+  @Autowired
+  private ServerConfiguration serverConfig;
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "If true, incoming messages are decoded in parallel and routed in arrival order")
+  private boolean parallelDecoding = false;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Number of threads for parallel decoding of incoming messages")
+  private int decodeThreads = 4;
+
+  // Parallel decoding: messages are decoded on the decode pool, and routed
+  // by a single thread in the order in which they arrived. Null unless
+  // parallel decoding is configured.
+  private volatile ExecutorService decodePool = null;
+  private volatile ExecutorService routeExecutor = null;
+
+  // decoding statistics, in nanoseconds
+  private AtomicLong messageCount = new AtomicLong(0);
+  private AtomicLong decodeTime = new AtomicLong(0);
+  private AtomicLong routeLatency = new AtomicLong(0);
+  private AtomicLong maxRouteLatency = new AtomicLong(0);
+
+  private static final String BROKER_TAG = "<broker>";
+  private static final String BROKER_END_TAG = "</broker>";
+  private static final String ID_ATTRIBUTE = " id=\"";
+  // longest id that cannot overflow a long
+  private static final int MAX_FAST_DIGITS = 18;
+
+  // key and id prefix by broker username, cached once the broker is
+  // logged in and has a key
+  private ConcurrentMap<String, Credentials> credentials =
+      new ConcurrentHashMap<String, Credentials>();
 
   @Override
   public void onMessage (Message message)
@@ -57,65 +102,297 @@ public class ServerMessageReceiver implements MessageListener
     }
   }
 
-  void onMessage (String xml) {
+  void onMessage (final String xml) {
+    if (xml.startsWith("<visualizer-status")) {
+      // visualizer ping request
+      log.info("received visualizer ping request");
+      visualizerProxy.respondToPing();
+      return;
+    }
+    final long arrival = System.nanoTime();
+    ExecutorService pool = decodePool;
+    ExecutorService router = routeExecutor;
+    if (null == pool || null == router) {
+      route(decode(xml), arrival);
+      return;
+    }
+    final Future<Object> decoded = pool.submit(new Callable<Object>() {
+      @Override
+      public Object call ()
+      {
+        return decode(xml);
+      }
+    });
+    router.execute(new Runnable() {
+      @Override
+      public void run ()
+      {
+        try {
+          route(decoded.get(), arrival);
+        }
+        catch (ExecutionException e) {
+          log.error("failed to decode message: " + e.getCause().toString());
+        }
+        catch (InterruptedException e) {
+          log.warn("interrupted waiting for decoded message");
+        }
+      }
+    });
+  }
+
+  // Validates and converts an incoming message. Returns null if the
+  // message is not valid.
+  private Object decode (String xml)
+  {
+    long start = System.nanoTime();
     // validate broker's key, then strip it off
     String validXml = xml;
     if (xml.startsWith("<broker-authentication")) {
       // don't validate the broker-authentication messages
       validXml = xml;
     }
-    else if (xml.startsWith("<visualizer-status")) {
-      // visualizer ping request
-      log.info("received visualizer ping request");
-      visualizerProxy.respondToPing();
-      return;
-    }
     else {
       // complain if message spoofed or missing validation prefix
       validXml = validateBrokerPrefix(xml);
       if (null == validXml) {
         log.warn("Invalid message: ignoring " + xml);
-        return;
+        return null;
       }
     }
     log.debug("onMessage(String) - received message:\n" + validXml);
     Object message = converter.fromXML(validXml);
+    decodeTime.addAndGet(System.nanoTime() - start);
+    return message;
+  }
+
+  // Routes a decoded message, if there is one
+  private void route (Object message, long arrival)
+  {
+    if (null == message)
+      return;
     log.debug("onMessage(String) - received message of type " + message.getClass().getSimpleName());
     brokerProxy.routeMessage(message);
+    long latency = System.nanoTime() - arrival;
+    messageCount.incrementAndGet();
+    routeLatency.addAndGet(latency);
+    long max = maxRouteLatency.get();
+    while (latency > max && !maxRouteLatency.compareAndSet(max, latency))
+      max = maxRouteLatency.get();
+  }
+
+  /**
+   * Stops parallel decoding after routing the messages already received,
+   * and logs decoding statistics. Called at the end of a sim.
+   */
+  public void stop ()
+  {
+    shutdownPools();
+    long count = messageCount.get();
+    if (count > 0) {
+      log.info("Received " + count + " messages, mean decode "
+               + (decodeTime.get() / count / 1000) + " usec, mean latency "
+               + (routeLatency.get() / count / 1000) + " usec, max latency "
+               + (maxRouteLatency.get() / 1000) + " usec");
+    }
+  }
+
+  private void shutdownPools ()
+  {
+    ExecutorService pool = decodePool;
+    ExecutorService router = routeExecutor;
+    decodePool = null;
+    routeExecutor = null;
+    if (null == router)
+      return;
+    // route what we have before letting go
+    router.shutdown();
+    pool.shutdown();
+    try {
+      router.awaitTermination(2, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      log.warn("interrupted waiting for message routing");
+    }
+    pool.shutdownNow();
+    router.shutdownNow();
+  }
+
+  @Override
+  public void setDefaults ()
+  {
+    shutdownPools();
+    credentials.clear();
+    messageCount.set(0);
+    decodeTime.set(0);
+    routeLatency.set(0);
+    maxRouteLatency.set(0);
+  }
+
+  @Override
+  public String initialize (Competition competition,
+                            List<String> completedInits)
+  {
+    serverConfig.configureMe(this);
+    if (parallelDecoding) {
+      log.info("parallel decoding with " + decodeThreads + " threads");
+      decodePool = Executors.newFixedThreadPool(Math.max(1, decodeThreads),
+                                                new DaemonThreadFactory("decode"));
+      routeExecutor =
+          Executors.newSingleThreadExecutor(new DaemonThreadFactory("route"));
+    }
+    return "ServerMessageReceiver";
+  }
+
+  // names threads for the logs, and keeps them from holding up shutdown
+  private static class DaemonThreadFactory implements ThreadFactory
+  {
+    private String prefix;
+    private int count = 0;
+
+    DaemonThreadFactory (String prefix)
+    {
+      super();
+      this.prefix = prefix;
+    }
+
+    @Override
+    public synchronized Thread newThread (Runnable r)
+    {
+      Thread thread = new Thread(r, prefix + "-" + count++);
+      thread.setDaemon(true);
+      return thread;
+    }
   }
   
   // check the message prefix against the broker. If it matches, then return
   // the message with the prefix stripped off.
-  private String validateBrokerPrefix (String message)
+  String validateBrokerPrefix (String message) // package visibility for testing
   {
     int realMsg = message.indexOf('<');
-    if (0 == realMsg)
+    if (realMsg <= 0)
       return null;
-    String prefix = message.substring(0, realMsg);
-    log.debug("prefix=" + prefix);
-    Matcher m = brokerRegex.matcher(message);
-    if (m.find(realMsg)) {
-      String username = m.group(1);
-      log.debug("broker username=" + username);
-      Broker broker = brokerRepo.findByUsername(username);
-      if (broker.getKey().equals(prefix)) {
-        // prefix match - check id prefix
-        m = idRegex.matcher(message);
-        if (m.find(realMsg)) {
-          long idValue = Long.parseLong(m.group(1));
-          log.debug("message id: " + idValue);
-          int idPrefix = IdGenerator.extractPrefix(idValue);
-          if (broker.getIdPrefix() == idPrefix) {
-            return message.substring(realMsg);
-          }
-        }
-        else {
-          // message with no id?
-          log.warn("Incoming message with no object id: " + message);
-          return message.substring(realMsg);
-        }
+    String username = findBrokerUsername(message, realMsg);
+    if (null == username)
+      return null;
+    log.debug("broker username=" + username);
+    Credentials broker = findCredentials(username);
+    if (null == broker || !broker.keyMatches(message, realMsg))
+      return null;
+    // prefix match - check id prefix
+    long idValue;
+    try {
+      idValue = findId(message, realMsg);
+    }
+    catch (NumberFormatException nfe) {
+      log.warn("Bad object id in message: " + message);
+      return null;
+    }
+    if (idValue >= 0) {
+      log.debug("message id: " + idValue);
+      int idPrefix = IdGenerator.extractPrefix(idValue);
+      if (broker.idPrefix == idPrefix) {
+        return message.substring(realMsg);
       }
     }
+    else {
+      // message with no id?
+      log.warn("Incoming message with no object id: " + message);
+      return message.substring(realMsg);
+    }
+    return null;
+  }
+
+  // Returns the content of the first <broker> element, starting at
+  // index from, that is a plausible username.
+  private String findBrokerUsername (String message, int from)
+  {
+    int start = message.indexOf(BROKER_TAG, from);
+    while (start >= 0) {
+      int nameStart = start + BROKER_TAG.length();
+      int index = nameStart;
+      while (index < message.length() && isUsernameChar(message.charAt(index)))
+        index += 1;
+      if (index > nameStart && message.startsWith(BROKER_END_TAG, index))
+        return message.substring(nameStart, index);
+      start = message.indexOf(BROKER_TAG, start + 1);
+    }
     return null;
   }
+
+  private boolean isUsernameChar (char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9') || c == '_' || c == ' ';
+  }
+
+  // Returns the value of the first id="nnn" attribute, starting at index
+  // from, or -1 if there is none. Values of up to 18 digits cannot
+  // overflow, so they are accumulated directly; longer ones go through
+  // Long.parseLong(), which throws NumberFormatException if out of range.
+  private long findId (String message, int from)
+  {
+    int start = message.indexOf(ID_ATTRIBUTE, from);
+    while (start >= 0) {
+      int digitStart = start + ID_ATTRIBUTE.length();
+      int index = digitStart;
+      while (index < message.length() && isDigit(message.charAt(index)))
+        index += 1;
+      int digits = index - digitStart;
+      if (digits > 0 && index < message.length()
+          && message.charAt(index) == '"') {
+        if (digits > MAX_FAST_DIGITS)
+          return Long.parseLong(message.substring(digitStart, index));
+        long value = 0;
+        for (int i = digitStart; i < index; i++)
+          value = value * 10 + (message.charAt(i) - '0');
+        return value;
+      }
+      start = message.indexOf(ID_ATTRIBUTE, start + 1);
+    }
+    return -1;
+  }
+
+  private boolean isDigit (char c)
+  {
+    return c >= '0' && c <= '9';
+  }
+
+  // Returns the key and id prefix for a broker, from the cache if
+  // possible. Brokers without keys are not cached, because they are not
+  // yet logged in.
+  private Credentials findCredentials (String username)
+  {
+    Credentials result = credentials.get(username);
+    if (null != result)
+      return result;
+    Broker broker = brokerRepo.findByUsername(username);
+    if (null == broker || null == broker.getKey()) {
+      log.warn("No key for broker " + username);
+      return null;
+    }
+    result = new Credentials(broker.getKey(), broker.getIdPrefix());
+    credentials.put(username, result);
+    return result;
+  }
+
+  // What we need to know about a broker to validate its messages
+  private static class Credentials
+  {
+    String key;
+    int idPrefix;
+
+    Credentials (String key, int idPrefix)
+    {
+      super();
+      this.key = key;
+      this.idPrefix = idPrefix;
+    }
+
+    // true just in case the message begins with the key, followed by
+    // the message itself at index realMsg
+    boolean keyMatches (String message, int realMsg)
+    {
+      return key.length() == realMsg && message.startsWith(key);
+    }
+  }
 }
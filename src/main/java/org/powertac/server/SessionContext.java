@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import org.apache.log4j.MDC;
+
+/**
+ * State of one simulation session that is not shared with other sessions
+ * in the same process: the tag that routes its log events to its own log
+ * files, the names of its JMS queues, and its clock.
+ * <p>
+ * A thread joins a session by calling enter(), which tags it in the log4j
+ * MDC. Threads it creates inherit the tag, so the clock thread, outbox
+ * threads and phase workers of a session log to the session's files. For
+ * each session, LogService keeps its own appenders, which accept events
+ * with the session's tag and events from untagged threads.</p>
+ * <p>
+ * Only the clock, the logs and the queue names are scoped to a session.
+ * The Competition, the repos and the plugin services are shared by the
+ * whole process, so CompetitionSetupService still runs one game at a
+ * time; what can run side by side is the clock and logging of several
+ * sessions, as SessionContextTest does.</p>
+ */
+public class SessionContext
+{
+  static final String MDC_KEY = "session";
+
+  private String id;
+  private String queuePrefix;
+  private volatile SimulationClockControl clock;
+
+  /**
+   * Creates a session context. The id must be unique among the sessions
+   * in the process. The queue prefix is prepended to the names of the
+   * session's JMS queues, and may be empty.
+   */
+  public SessionContext (String id, String queuePrefix)
+  {
+    super();
+    this.id = id;
+    this.queuePrefix = (null == queuePrefix) ? "" : queuePrefix;
+  }
+
+  public String getId ()
+  {
+    return id;
+  }
+
+  public String getQueuePrefix ()
+  {
+    return queuePrefix;
+  }
+
+  /**
+   * Returns the name this session uses for the named queue.
+   */
+  public String getQueueName (String name)
+  {
+    return queuePrefix + name;
+  }
+
+  /**
+   * Returns the clock of the session, or null if its simulation has not
+   * started.
+   */
+  public SimulationClockControl getClock ()
+  {
+    return clock;
+  }
+
+  void setClock (SimulationClockControl clock)
+  {
+    this.clock = clock;
+  }
+
+  /**
+   * Tags the current thread, and threads it creates from now on, as
+   * belonging to this session.
+   */
+  public void enter ()
+  {
+    MDC.put(MDC_KEY, id);
+  }
+
+  /**
+   * Removes the session tag from the current thread.
+   */
+  public void leave ()
+  {
+    MDC.remove(MDC_KEY);
+  }
+
+  /**
+   * Returns the id of the session of the current thread, or null if it
+   * is not in a session.
+   */
+  public static String currentId ()
+  {
+    Object tag = MDC.get(MDC_KEY);
+    return (null == tag) ? null : tag.toString();
+  }
+}
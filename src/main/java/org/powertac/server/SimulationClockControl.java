@@ -15,25 +15,27 @@
  */
 package org.powertac.server;
 
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
+import org.joda.time.Instant;
 import org.powertac.common.TimeService;
 import org.powertac.common.config.ConfigurableValue;
 import org.powertac.common.interfaces.ServerConfiguration;
-import org.powertac.common.spring.SpringApplicationContext;
 
 /**
- * Timer-based clock management for the Power TAC simulator. This is a
- * singleton class, but it must be initialized with a reference to the 
- * timeService in order to do its job. Therefore, it is an error to 
- * attempt to retrieve the instance before initialization.
+ * Scheduler-based clock management for the Power TAC simulator. Each
+ * simulation session creates its own instance with create(), which ties
+ * it to the session's competition controller and timeService; there is
+ * no shared instance.
  * <p>
  * The basic design for this scheme is given at 
  * https://github.com/powertac/powertac-server/wiki/Time-management.
@@ -55,6 +57,40 @@ import org.powertac.common.spring.SpringApplicationContext;
  * a user to fill out a dialog or otherwise interact with a user. Given
  * an appropriate set of messages, this event could be handled in much
  * the same way as a server timeslot overrun.</p>
+ * <p>
+ * In fast mode, the clock does not wait for wall-clock time to catch up.
+ * Instead, the start time is pulled forward as soon as the simulator
+ * completes a timeslot, so the next tick follows after at most
+ * fastClockWindow msec. The timeService still computes simulation time
+ * from start, base, and rate, so it stays consistent. Brokers follow the
+ * simulation by its timeslot messages, so outside bootstrap mode they are
+ * sent a new start time only when the moves they have not been told about
+ * add up to fastClockNotifyShift msec.</p>
+ * <p>
+ * Ticks and watchdogs are run by a single scheduler thread. Deadlines are
+ * computed in msec against the system clock as in the formula above, but
+ * delays are measured with System.nanoTime(), anchored to the system clock
+ * once when the instance is created, so they are not disturbed by
+ * adjustments to the system clock. After that, nanoTime is the only pacing
+ * source; checkClockDrift() logs any skew from the system clock, but never
+ * re-anchors. The lateness of each tick is recorded in a histogram, which
+ * is logged when the clock is stopped.</p>
+ * <p>
+ * With adaptive pacing, the interval to the next tick is chosen at each
+ * tick from the average time the simulator needed for recent ticks, plus
+ * the agent window, within maxTickStretch and maxTickShrink of the nominal
+ * interval. The change is made by moving the start time, and brokers are
+ * told about it with a SimResume message, just as they are after a delay.
+ * This keeps a growing step cost from turning into repeated pauses.</p>
+ * <p>
+ * The clock state and any pending pause request are kept together in a
+ * single atomic word, and every transition is a compare-and-set on that
+ * word, so the simulation thread, the scheduler thread, and broker message
+ * threads never block each other. The simulation thread parks in
+ * waitForTick() until the tick counter reaches the tick it is waiting for;
+ * because it publishes itself before checking the counter, and the
+ * scheduler increments the counter before unparking it, a tick that
+ * arrives before waitForTick() is called is never lost.</p>
  * 
  * @author John Collins
  */
@@ -63,6 +99,10 @@ public class SimulationClockControl
   static private Logger log = Logger.getLogger(SimulationClockControl.class);
 
   public enum Status { CLEAR, COMPLETE, DELAYED, PAUSED, STOPPED }
+
+  // bit in the control word for a pending pause request
+  private static final int PAUSE_REQUESTED = 0x100;
+  private static final Status[] STATUS_VALUES = Status.values();
   
   private TimeService timeService;
   
@@ -72,53 +112,83 @@ public class SimulationClockControl
       publish = true,
       description = "Minimum agent time per timeslot in msec")
   private Integer minAgentWindow = 1000;
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "If true, each tick follows as soon as the simulator has completed the previous timeslot")
+  private boolean fastClock = false;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Minimum time in msec between timeslot completion and the next tick in fast mode")
+  private int fastClockWindow = 0;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "In fast mode, change in msec of the start time before brokers are sent the new start time")
+  private int fastClockNotifyShift = 60000;
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "If true, the tick interval adapts to recent simulator step times")
+  private boolean adaptivePacing = false;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Number of recent ticks averaged for adaptive pacing")
+  private int pacingWindow = 10;
+
+  @ConfigurableValue(valueType = "Double",
+      description = "Maximum stretch of the tick interval, as a proportion of the nominal interval")
+  private double maxTickStretch = 0.5;
+
+  @ConfigurableValue(valueType = "Double",
+      description = "Maximum shrink of the tick interval, as a proportion of the nominal interval")
+  private double maxTickShrink = 0.0;
+
   private int minWindow = 50;
   private int minPauseInterval = 100; // min time before pause
   private double maxTickOffsetRatio = 0.2; // max offset as proportion of tickInterval
 
   private long base;
-  private long start;
+  private volatile long start;
   private long rate;
   private long modulo;
   private long tickInterval;
-  private long scheduledTickTime;
+  private volatile long scheduledTickTime;
 
-  private Status state = Status.CLEAR; // package visibility for testing
-  private int nextTick = -1;
-  private boolean pauseRequested = false;
-  
-  private Timer theTimer;
-  private WatchdogAction currentWatchdog;
+  // monotonic time base - see now()
+  private final long wallAnchor;
+  private final long nanoAnchor;
+  private long lastSkew = 0l;
+  private LatencyHistogram tickLateness = new LatencyHistogram();
+  private ClockTelemetry telemetry = new ClockTelemetry();
+
+  // state ordinal, plus PAUSE_REQUESTED if a pause is pending
+  private AtomicInteger control = new AtomicInteger(Status.CLEAR.ordinal());
+  private AtomicInteger nextTick = new AtomicInteger(-1);
+  private volatile Thread tickWaiter;
   
-  private Set<Semaphore> waitUntilStopSemaphores;
+  private ScheduledExecutorService scheduler;
+  private volatile ScheduledFuture<?> currentWatchdog;
   
-  // ------------- Singleton methods -------------
-  private static SimulationClockControl instance;
+  private CountDownLatch stopLatch = new CountDownLatch(1);
 
-  /**
-   * Creates the instance and sets the reference to the timeService.
-   */
-  public static void initialize (CompetitionControlService competitionControl,
-                                 TimeService timeService)
-  {
-    instance = new SimulationClockControl(competitionControl, timeService);
-    ServerConfiguration serverConfig =
-        (ServerConfiguration) SpringApplicationContext.getBean("serverPropertiesService");
-    serverConfig.configureMe(instance);
-  }
+  // start time moves in fast mode that brokers have not been told about
+  private long unannouncedShift = 0l;
   
+  // ------------- Factory method -------------
   /**
-   * Returns the instance, which of course will be null if the singleton
-   * is not yet initialized.
-   * @return
+   * Creates and configures a clock for a single simulation session.
    */
-  public static SimulationClockControl getInstance ()
+  public static SimulationClockControl create (CompetitionControlService competitionControl,
+                                               TimeService timeService,
+                                               ServerConfiguration serverConfig)
   {
-    return instance;
+    SimulationClockControl result =
+        new SimulationClockControl(competitionControl, timeService);
+    serverConfig.configureMe(result);
+    return result;
   }
 
-  private SimulationClockControl (CompetitionControlService competitionControl,
-                                  TimeService timeService)
+  // package visibility for testing
+  SimulationClockControl (CompetitionControlService competitionControl,
+                          TimeService timeService)
   {
     super();
     this.competitionControl = competitionControl;
@@ -127,9 +197,17 @@ public class SimulationClockControl
     this.rate = timeService.getRate();
     this.modulo = timeService.getModulo();
     this.tickInterval = this.modulo / this.rate;
-    theTimer = new Timer();
-    this.waitUntilStopSemaphores = Collections.synchronizedSet(new HashSet<Semaphore>());
-
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread (Runnable r)
+      {
+        Thread thread = new Thread(r, "clock");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    nanoAnchor = System.nanoTime();
+    wallAnchor = System.currentTimeMillis();
   }
   
   // --------------- external api ----------------
@@ -153,19 +231,15 @@ public class SimulationClockControl
    */
   public void scheduleTick ()
   {
-    //System.out.println("scheduleTick() " + new Date().getTime());
     long nextTick = computeNextTickTime();
-    boolean success = false;
-    while (!success) {
-      try {
-        theTimer.schedule(new TickAction(this), new Date(nextTick));
-        success = true;
-      }
-      catch (IllegalStateException ise) {
-        //System.out.println("Timer failure: " + ise.toString());
-        // at this point there should be no outstanding timer tasks
-        theTimer = new Timer();
-      }
+    long delay = (nextTick - now()) * 1000000;
+    long deadline = System.nanoTime() + delay;
+    try {
+      scheduler.schedule(new TickAction(this, nextTick, deadline),
+                         Math.max(0l, delay), TimeUnit.NANOSECONDS);
+    }
+    catch (RejectedExecutionException ree) {
+      log.warn("tick not scheduled, clock is stopped");
     }
   }
   
@@ -174,93 +248,193 @@ public class SimulationClockControl
    * timeslot. If the sim was delayed, then resume it. On the last tick,
    * client must call stop() rather than complete().
    */
-  public synchronized void complete ()
-  {
-    //System.out.println("complete() " + new Date().getTime());
-    if (state == Status.DELAYED) {
-      if (pauseRequested) {
-        // already paused, just change the state
-        state = Status.PAUSED;
-        pauseRequested = false;
+  public void complete ()
+  {
+    telemetry.complete(now());
+    if (fastClock) {
+      completeFast();
+      return;
+    }
+    while (true) {
+      int current = control.get();
+      Status state = status(current);
+      if (state == Status.DELAYED) {
+        if (isPauseRequested(current)) {
+          // already paused, just change the state
+          if (control.compareAndSet(current, word(Status.PAUSED, false)))
+            return;
+        }
+        else if (control.compareAndSet(current, word(Status.COMPLETE, false))) {
+          resume();
+          return;
+        }
+      }
+      else if (state == Status.CLEAR) {
+        // let watchdog start the next tick
+        if (control.compareAndSet(current,
+                                  word(Status.COMPLETE,
+                                       isPauseRequested(current))))
+          return;
+      }
+      else {
         return;
       }
-      else
-        resume();
     }
-    // let watchdog start the next tick
-    state = Status.COMPLETE;
   }
   
+  // In fast mode there is no watchdog, so complete() either pauses the clock
+  // or moves the start time so the next tick happens right away.
+  private void completeFast ()
+  {
+    while (true) {
+      int current = control.get();
+      if (status(current) != Status.CLEAR)
+        return;
+      if (isPauseRequested(current)) {
+        if (control.compareAndSet(current, word(Status.PAUSED, false))) {
+          telemetry.pauseStarted(now());
+          competitionControl.pause();
+          return;
+        }
+      }
+      else if (control.compareAndSet(current, word(Status.COMPLETE, false))) {
+        long wait = computeNextTickTime() - now() - fastClockWindow;
+        if (wait > 0) {
+          shiftStartFast(-wait);
+        }
+        scheduleTick();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns true if the clock is running in fast mode.
+   */
+  public boolean isFastClock ()
+  {
+    return fastClock;
+  }
+
+  // package visibility for testing
+  void setFastClock (boolean fastClock, int window)
+  {
+    this.fastClock = fastClock;
+    this.fastClockWindow = window;
+  }
+
+  // package visibility for testing
+  void setFastClockNotifyShift (int shift)
+  {
+    this.fastClockNotifyShift = shift;
+  }
+
   /**
    * Stops the clock. Call this method when processing on the last tick is
    * finished.
    */
-  public synchronized void stop ()
+  public void stop ()
   {
-    //System.out.println("Stop at " + new Date().getTime());
-    state = Status.STOPPED;
-    if (currentWatchdog != null) {
-      currentWatchdog.cancel();
+    control.set(word(Status.STOPPED, false));
+    ScheduledFuture<?> watchdog = currentWatchdog;
+    if (watchdog != null) {
+      watchdog.cancel(false);
       currentWatchdog = null;
     }
-    for (Semaphore sem : waitUntilStopSemaphores) {
-      sem.release();
-    }
-    waitUntilStopSemaphores.clear();
+    scheduler.shutdownNow();
+    log.info("tick lateness (msec): " + tickLateness.toString());
+    log.info("clock telemetry: " + telemetry.summary());
+    // the telemetry file is complete before anyone waiting for the stop
+    // goes on to close the logs
+    telemetry.close();
+    stopLatch.countDown();
+    Thread waiter = tickWaiter;
+    if (waiter != null)
+      LockSupport.unpark(waiter);
   }
   
   public void waitUntilStop() {
-    Status state = getState();
-    if (state != Status.STOPPED) {
-      Semaphore sem = new Semaphore(0);
-      waitUntilStopSemaphores.add(sem);
-      try {
-        sem.acquire();
-      }
-      catch (InterruptedException e) {
-        log.info("Who dares wake me up??", e);
-      }
+    try {
+      stopLatch.await();
+    }
+    catch (InterruptedException e) {
+      log.info("Who dares wake me up??", e);
     }
   }
   
   /**
-   * Blocks the caller until the next tick.
+   * Blocks the caller until the next tick, or until the clock is stopped
+   * or the caller is interrupted. Returns true if the tick arrived; the
+   * caller should end the simulation if it returns false. The interrupt
+   * status of the caller is preserved.
    */
-  public synchronized void waitForTick (int n)
+  public boolean waitForTick (int n)
   {
-    // Can we guarantee this is called BEFORE the corresponding notifyTick()?
-    //System.out.println("waitForTick() nextTick=" + nextTick + ", n=" + n);
-    while (nextTick < n) {
-      try {
-        wait();
+    // publish the waiting thread before checking the tick counter,
+    // so a tick that arrives in between will unpark us
+    tickWaiter = Thread.currentThread();
+    boolean interrupted = false;
+    while (nextTick.get() < n && getState() != Status.STOPPED) {
+      LockSupport.park(this);
+      // park() returns at once while the interrupt flag is set
+      if (Thread.interrupted()) {
+        interrupted = true;
+        break;
       }
-      catch (InterruptedException ie) { }
     }
+    tickWaiter = null;
+    if (interrupted) {
+      log.warn("interrupted waiting for tick " + n);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    if (getState() == Status.STOPPED)
+      return false;
 
     // find the delay offset for this tick
-    long offset = new Date().getTime() - scheduledTickTime;
+    long offset = now() - scheduledTickTime;
     if (offset > (long)(tickInterval / maxTickOffsetRatio)) {
       log.warn("clock delay: " + offset + " msec");
       updateStart(offset);
     }
 
     // update the time, set the watchdog, and schedule the next tick.
-    timeService.updateTime();
+    // The time is computed from now() rather than by
+    // timeService.updateTime(), which reads the system clock.
+    long simTime = (now() - start) * rate + base;
+    timeService.setCurrentTime(new Instant(simTime - simTime % modulo));
     setState(Status.CLEAR);
-    long earliestPause = new Date().getTime() + minPauseInterval;
+    if (fastClock) {
+      // next tick is scheduled by complete()
+      return true;
+    }
+    if (adaptivePacing) {
+      adjustPacing();
+    }
+    long current = now();
+    long earliestPause = current + minPauseInterval;
     long wdTime = computeNextTickTime() - minWindow;
     if (wdTime < earliestPause)
       wdTime = earliestPause;
-    //System.out.println("watchdog set for " + wdTime);
-    currentWatchdog = new WatchdogAction(this);
-    theTimer.schedule(currentWatchdog, new Date(wdTime));
+    scheduleWatchdog(wdTime - current);
+    return true;
   }
   
   /**
-   * Compares sim time to sys time, updates start if it's off too much
+   * Compares sim time to sys time, updates start if it's off too much.
+   * A step or slew of the system clock is only logged; sim time follows
+   * the monotonic clock.
    */
   public void checkClockDrift() {
-    long offset = timeService.getOffset();
+    long skew = System.currentTimeMillis() - now();
+    if (Math.abs(skew - lastSkew) > minPauseInterval) {
+      // system clock has been adjusted, or the two clocks have drifted
+      log.warn("system clock skew " + skew + " msec, ignored");
+      lastSkew = skew;
+    }
+    // how far now() is past the nominal time of the current timeslot
+    long simTime = timeService.getCurrentTime().getMillis();
+    long offset = now() - (start + (simTime - base) / rate);
     if (offset > (long)(tickInterval / maxTickOffsetRatio)) {
       log.warn("clock drift " + offset);
       updateStart(offset);
@@ -270,66 +444,122 @@ public class SimulationClockControl
   /**
    * Serves an external pause request. 
    */
-  public synchronized void requestPause ()
+  public void requestPause ()
   {
     // just set the flag. We'll pay attention to it the next
     // time complete() is called.
-    pauseRequested = true;
+    while (true) {
+      int current = control.get();
+      if (status(current) == Status.STOPPED || isPauseRequested(current))
+        return;
+      if (control.compareAndSet(current, current | PAUSE_REQUESTED))
+        return;
+    }
   }
   
   /**
    * Releases an externally-requested pause.
    */
-  public synchronized void releasePause ()
+  public void releasePause ()
   {
-    if (state != Status.PAUSED) {
-      // not paused yet, just clear the request
-      pauseRequested = false;
-    }
-    else {
-      // already paused, just proceed
-      state = Status.COMPLETE;
-      resume();
+    while (true) {
+      int current = control.get();
+      Status state = status(current);
+      if (state == Status.PAUSED) {
+        // already paused, just proceed
+        if (control.compareAndSet(current, word(Status.COMPLETE, false))) {
+          resume();
+          return;
+        }
+      }
+      else if (isPauseRequested(current)) {
+        // not paused yet, just clear the request
+        if (control.compareAndSet(current, word(state, false)))
+          return;
+      }
+      else {
+        return;
+      }
     }
   }
 
   // ------------------------- internal methods ------------------
   
   /**
-   * notifies the waiting thread (if any).
+   * Advances the tick counter and unparks the waiting thread (if any).
    */
-  private synchronized void notifyTick ()
+  private void notifyTick ()
   {
-    nextTick += 1;
-    notifyAll();
+    nextTick.incrementAndGet();
+    Thread waiter = tickWaiter;
+    if (waiter != null)
+      LockSupport.unpark(waiter);
   }
   
   /**
    * Pauses the clock and notifies brokers just in case the current state
-   * is CLEAR, otherwise if the state is COMPLETE, schedules the next tick. 
-   * No action is taken if the current state is PAUSED or STOPPED, thereby
-   * effectively stopping the clock. 
-   * This method and the complete() method are synchronized to protect 
-   * against complete() being called before state is set to paused.
+   * is CLEAR, otherwise if the state is COMPLETE, schedules the next tick
+   * or serves a pending pause request. No action is taken if the current
+   * state is PAUSED or STOPPED, thereby effectively stopping the clock.
+   * The state changes are compare-and-set operations, so a concurrent
+   * complete() either happens before the delay and the tick is scheduled,
+   * or after it and complete() resumes the clock.
    */
-  private synchronized void delayMaybe ()
-  {
-    //System.out.println("delayMaybe() " + new Date().getTime());
-    if (state == Status.CLEAR) {
-      // sim thread is not finished
-      //System.out.println("delaying");
-      state = Status.DELAYED; // clock resumed by calling complete()
-      competitionControl.pause();
-    }
-    else if (pauseRequested) {
-      // don't schedule the next tick here
-      state = Status.PAUSED;
-      competitionControl.pause();
-      pauseRequested = false;
+  private void delayMaybe ()
+  {
+    while (true) {
+      int current = control.get();
+      Status state = status(current);
+      if (state == Status.CLEAR) {
+        // sim thread is not finished; clock resumed by calling complete()
+        if (control.compareAndSet(current,
+                                  word(Status.DELAYED,
+                                       isPauseRequested(current)))) {
+          telemetry.delayed();
+          telemetry.pauseStarted(now());
+          competitionControl.pause();
+          return;
+        }
+      }
+      else if (state == Status.COMPLETE) {
+        if (isPauseRequested(current)) {
+          // don't schedule the next tick here
+          if (control.compareAndSet(current, word(Status.PAUSED, false))) {
+            telemetry.pauseStarted(now());
+            competitionControl.pause();
+            return;
+          }
+        }
+        else {
+          // sim finished - schedule the next tick
+          scheduleTick();
+          return;
+        }
+      }
+      else {
+        return;
+      }
     }
-    else if (state == Status.COMPLETE) {
-      // sim finished - schedule the next tick
-      scheduleTick();
+  }
+
+  // Moves the start time so the next tick comes after an interval that
+  // fits the recent step times. Changes under 5% of the nominal interval
+  // are ignored, so brokers are not sent a new start time for jitter.
+  private void adjustPacing ()
+  {
+    long step = telemetry.recentStepMillis(pacingWindow);
+    if (step < 0)
+      return;
+    long needed = step + minWindow + minPauseInterval;
+    long interval = Math.max((long)(tickInterval * (1.0 - maxTickShrink)),
+                             Math.min((long)(tickInterval * (1.0 + maxTickStretch)),
+                                      needed));
+    // the next tick is nominally tickInterval after this one
+    long offset = interval - tickInterval;
+    if (Math.abs(offset) > tickInterval / 20) {
+      log.info("pacing: recent step " + step + " msec, next interval "
+               + interval + " msec");
+      updateStart(offset, !competitionControl.isBootstrapMode());
     }
   }
 
@@ -337,38 +567,141 @@ public class SimulationClockControl
   // the clock.
   private void resume ()
   {
+    telemetry.pauseEnded(now());
     long originalNextTick = computeNextTickTime();
-    long actualNextTick = new Date().getTime() + minWindow;
+    long actualNextTick = now() + (fastClock ? fastClockWindow : minWindow);
     updateStart(actualNextTick - originalNextTick);
     scheduleTick();
   }
 
   // push the clock forward by offset msec
   private void updateStart (long offset)
+  {
+    updateStart(offset, true);
+  }
+
+  // moves the start time by offset msec, telling brokers if notify is true.
+  // Start changes may come from the sim thread or from a broker releasing
+  // a pause, so they are serialized here.
+  private synchronized void updateStart (long offset, boolean notify)
   {
     start += offset;
     timeService.setStart(start);
-    competitionControl.resume(start);
+    telemetry.startShifted(offset);
+    if (notify) {
+      unannouncedShift = 0l;
+      competitionControl.resume(start);
+    }
+  }
+
+  // moves the start time in fast mode, telling brokers only when the
+  // moves since they were last told add up to fastClockNotifyShift
+  private synchronized void shiftStartFast (long offset)
+  {
+    boolean notify = false;
+    if (!competitionControl.isBootstrapMode()) {
+      unannouncedShift += offset;
+      notify = Math.abs(unannouncedShift) >= fastClockNotifyShift;
+    }
+    updateStart(offset, notify);
+  }
+
+  Status getState () // package visibility for test support
+  {
+    return status(control.get());
+  }
+
+  /**
+   * Sets the state, keeping any pending pause request. A stopped clock
+   * stays stopped.
+   */
+  void setState (Status newState)
+  {
+    while (true) {
+      int current = control.get();
+      if (status(current) == Status.STOPPED)
+        return;
+      if (control.compareAndSet(current,
+                                word(newState, isPauseRequested(current))))
+        return;
+    }
+  }
+
+  /**
+   * Returns the number of ticks delivered so far, less one.
+   */
+  int getTickCount () // package visibility for test support
+  {
+    return nextTick.get();
+  }
+
+  private static Status status (int word)
+  {
+    return STATUS_VALUES[word & ~PAUSE_REQUESTED];
+  }
+
+  private static boolean isPauseRequested (int word)
+  {
+    return (word & PAUSE_REQUESTED) != 0;
+  }
+
+  private static int word (Status state, boolean pauseRequested)
+  {
+    return state.ordinal() | (pauseRequested ? PAUSE_REQUESTED : 0);
+  }
+
+  // schedules the watchdog after delay msec
+  private void scheduleWatchdog (long delay)
+  {
+    if (getState() == Status.STOPPED)
+      return;
+    try {
+      currentWatchdog = scheduler.schedule(new WatchdogAction(this),
+                                           delay, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException ree) {
+      log.warn("watchdog not scheduled, clock is stopped");
+    }
+  }
+
+  /**
+   * Returns the current time in msec, measured by System.nanoTime() from
+   * the anchor, which was the system time when it was set.
+   */
+  long now ()
+  {
+    return wallAnchor + (System.nanoTime() - nanoAnchor) / 1000000;
+  }
+
+  /**
+   * Returns the histogram of tick lateness, the time between when a tick
+   * was due and when it actually ran.
+   */
+  LatencyHistogram getTickLateness ()
+  {
+    return tickLateness;
   }
 
-  synchronized Status getState () // package visibility for test support
+  /**
+   * Writes the per-tick telemetry of this clock to the named file in CSV
+   * format as the simulation runs. The file is closed by stop().
+   */
+  public void setTelemetryFile (String filename)
   {
-    return state;
+    telemetry.open(filename);
   }
 
   /**
-   * Sets state in synchronized block. Needed for cases (such as
-   * TickAction.run()) where state needs to be set from outside a
-   * synchronized block.
+   * Returns the per-tick telemetry of this clock.
    */
-  synchronized void setState (Status newState)
+  public ClockTelemetry getTelemetry ()
   {
-    state = newState;
+    return telemetry;
   }
 
   private long computeNextTickTime ()
   {
-    long current = new Date().getTime();
+    long current = now();
     // not a valid test in sim mode...
     if (current < start) {
       // first tick is special
@@ -385,31 +718,35 @@ public class SimulationClockControl
     }
   }
   
-  private class TickAction extends TimerTask
+  private class TickAction implements Runnable
   {
     SimulationClockControl scc;
+    long tickTime;
+    long deadline;
     
-    TickAction (SimulationClockControl scc)
+    TickAction (SimulationClockControl scc, long tickTime, long deadline)
     {
       super();
       this.scc = scc;
+      this.tickTime = tickTime;
+      this.deadline = deadline;
     }
     
     /**
-     * Runs a tick - updates the timeService, clears the state,
-     * schedules the watchdog, and notifies the simulator. The
-     * monitor object is the singleton.
+     * Runs a tick - records the tick time and lateness, and unparks
+     * the simulator, which updates the timeService and sets the watchdog.
      */
     @Override
     public void run ()
     {
-      //System.out.println("TickAction.run() " + new Date().getTime());
-      scc.scheduledTickTime = scheduledExecutionTime();
+      scc.tickLateness.record(System.nanoTime() - deadline);
+      scc.telemetry.tick(tickTime, now());
+      scc.scheduledTickTime = tickTime;
       scc.notifyTick();
     }
   }
   
-  private class WatchdogAction extends TimerTask
+  private class WatchdogAction implements Runnable
   {
     SimulationClockControl scc;
     
@@ -420,15 +757,14 @@ public class SimulationClockControl
     }
     
     /**
-     * Checks for sim task completion by calling pauseMaybe on the
+     * Checks for sim task completion by calling delayMaybe on the
      * instance.
      */
     @Override
     public void run ()
     {
-      //System.out.println("WatchdogAction.run() " + new Date().getTime());
-      scc.delayMaybe();
       currentWatchdog = null;
+      scc.delayMaybe();
     }
   }
 }
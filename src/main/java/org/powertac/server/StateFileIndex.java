@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Index of a state log, built in one pass and cached in a file next to
+ * the log, with the extension ".idx". For each timeslot it holds the byte
+ * offset of the first WeatherReport line; the forecast predictions that
+ * belong to a report follow it in the log, so reading from that offset
+ * finds both. It also holds the competition's simulation base time and
+ * its minimum and expected timeslot counts, which are otherwise found by
+ * scanning the log.
+ * <p>
+ * The cached index records the length and modification time of the log,
+ * and is rebuilt if either has changed. If the cache cannot be written,
+ * the index is still used, and rebuilt the next time. Only local files
+ * are indexed; get() returns null for other URLs.</p>
+ */
+public class StateFileIndex
+{
+  static private Logger log = Logger.getLogger(StateFileIndex.class);
+
+  static final int MAGIC = 0x50545349; // "PTSI"
+  static final int VERSION = 1;
+  static final String EXTENSION = ".idx";
+
+  static final String REPORT = "org.powertac.common.WeatherReport";
+
+  private File stateFile;
+  private long baseTime = -1l;
+  private int minimumTimeslotCount = -1;
+  private int expectedTimeslotCount = -1;
+  private TreeMap<Integer, Long> reportOffsets = new TreeMap<Integer, Long>();
+
+  /**
+   * Returns the index of the named state log, loading it from the cache
+   * or building it as needed. The name may be a file path or a file: URL.
+   * Returns null if the log is not a local file or cannot be read.
+   */
+  public static StateFileIndex get (String name)
+  {
+    String path = name;
+    if (path.startsWith("file:"))
+      path = path.substring("file:".length());
+    else if (path.contains(":") && !new File(path).exists())
+      return null;
+    File stateFile = new File(path);
+    if (!stateFile.isFile())
+      return null;
+
+    StateFileIndex index = new StateFileIndex(stateFile);
+    File cache = new File(path + EXTENSION);
+    try {
+      if (cache.isFile() && index.load(cache))
+        return index;
+    }
+    catch (IOException ioe) {
+      log.warn("Cannot read index " + cache + ": " + ioe.toString());
+    }
+
+    // a failed or stale load may have filled in some fields
+    index = new StateFileIndex(stateFile);
+    try {
+      long start = System.currentTimeMillis();
+      index.build();
+      log.info("Indexed " + stateFile + ": " + index.reportOffsets.size()
+               + " timeslots in " + (System.currentTimeMillis() - start)
+               + " msec");
+    }
+    catch (IOException ioe) {
+      log.error("Cannot index " + stateFile + ": " + ioe.toString());
+      return null;
+    }
+    try {
+      index.save(cache);
+    }
+    catch (IOException ioe) {
+      log.warn("Cannot write index " + cache + ": " + ioe.toString());
+    }
+    return index;
+  }
+
+  StateFileIndex (File stateFile)
+  {
+    super();
+    this.stateFile = stateFile;
+  }
+
+  /**
+   * Returns the simulation base time of the logged game in msec, or -1
+   * if it was not found.
+   */
+  public long getBaseTime ()
+  {
+    return baseTime;
+  }
+
+  /**
+   * Returns the minimum timeslot count, or -1 if it was not found.
+   */
+  public int getMinimumTimeslotCount ()
+  {
+    return minimumTimeslotCount;
+  }
+
+  /**
+   * Returns the expected timeslot count, or -1 if it was not found.
+   */
+  public int getExpectedTimeslotCount ()
+  {
+    return expectedTimeslotCount;
+  }
+
+  /**
+   * Returns the number of timeslots with weather reports.
+   */
+  public int getTimeslotCount ()
+  {
+    return reportOffsets.size();
+  }
+
+  /**
+   * Returns the offset of the first report for timeslot or a later one,
+   * or the length of the log if there is none.
+   */
+  public long getReportOffset (int timeslot)
+  {
+    Map.Entry<Integer, Long> entry = reportOffsets.ceilingEntry(timeslot);
+    return (null == entry) ? stateFile.length() : entry.getValue();
+  }
+
+  /**
+   * Opens a reader on the log, positioned at the first report for
+   * timeslot or a later one.
+   */
+  public BufferedReader openReader (int timeslot) throws IOException
+  {
+    FileChannel channel = new RandomAccessFile(stateFile, "r").getChannel();
+    channel.position(getReportOffset(timeslot));
+    return new BufferedReader(
+        new InputStreamReader(Channels.newInputStream(channel)));
+  }
+
+  // Scans the log, recording line offsets
+  void build () throws IOException
+  {
+    InputStream input =
+        new BufferedInputStream(new FileInputStream(stateFile), 65536);
+    try {
+      StringBuilder line = new StringBuilder();
+      long offset = 0l;
+      long lineStart = 0l;
+      int c;
+      while ((c = input.read()) != -1) {
+        offset += 1;
+        if (c != '\n') {
+          line.append((char) c);
+          continue;
+        }
+        processLine(line.toString(), lineStart);
+        line.setLength(0);
+        lineStart = offset;
+      }
+      if (line.length() > 0)
+        processLine(line.toString(), lineStart);
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  private void processLine (String line, long offset)
+  {
+    if (line.contains(REPORT)) {
+      String[] fields = line.split("::");
+      try {
+        Integer timeslot = Integer.valueOf(fields[3]);
+        if (!reportOffsets.containsKey(timeslot))
+          reportOffsets.put(timeslot, offset);
+      }
+      catch (RuntimeException re) {
+        log.warn("Unexpected report line at " + offset + " in " + stateFile);
+      }
+    }
+    else {
+      try {
+        if (baseTime < 0 && line.contains("withSimulationBaseTime")) {
+          baseTime = Long.parseLong(lastField(line));
+        }
+        else if (minimumTimeslotCount < 0
+                 && line.contains("withMinimumTimeslotCount")) {
+          minimumTimeslotCount = Integer.parseInt(lastField(line));
+        }
+        else if (expectedTimeslotCount < 0
+                 && line.contains("withExpectedTimeslotCount")) {
+          expectedTimeslotCount = Integer.parseInt(lastField(line));
+        }
+      }
+      catch (NumberFormatException nfe) {
+        // the value stays unknown, as if the line were missing
+        log.warn("Unexpected competition line at " + offset + " in "
+                 + stateFile);
+      }
+    }
+  }
+
+  private String lastField (String line)
+  {
+    return line.substring(line.lastIndexOf("::") + 2).trim();
+  }
+
+  // Loads the cached index, returning false if it is out of date
+  boolean load (File cache) throws IOException
+  {
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION
+          || in.readLong() != stateFile.length()
+          || in.readLong() != stateFile.lastModified())
+        return false;
+      baseTime = in.readLong();
+      minimumTimeslotCount = in.readInt();
+      expectedTimeslotCount = in.readInt();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        int timeslot = in.readInt();
+        reportOffsets.put(timeslot, in.readLong());
+      }
+      return true;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  // Writes the index to a temporary file, then renames it, so a reader
+  // never sees a partly written cache
+  void save (File cache) throws IOException
+  {
+    File temp = File.createTempFile(cache.getName(), ".tmp",
+                                    cache.getAbsoluteFile().getParentFile());
+    try {
+      write(temp);
+      if (!temp.renameTo(cache)) {
+        // some platforms will not rename over an existing file
+        cache.delete();
+        if (!temp.renameTo(cache))
+          throw new IOException("Cannot rename " + temp + " to " + cache);
+      }
+    }
+    finally {
+      temp.delete();
+    }
+  }
+
+  private void write (File file) throws IOException
+  {
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(stateFile.length());
+      out.writeLong(stateFile.lastModified());
+      out.writeLong(baseTime);
+      out.writeInt(minimumTimeslotCount);
+      out.writeInt(expectedTimeslotCount);
+      out.writeInt(reportOffsets.size());
+      for (Map.Entry<Integer, Long> entry : reportOffsets.entrySet()) {
+        out.writeInt(entry.getKey());
+        out.writeLong(entry.getValue());
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the time spent in each part of a timeslot step. A step is
+ * bracketed by startStep() and endStep(); in between, each timed section
+ * is recorded under a name with record(). Timings use System.nanoTime()
+ * and are reported in microseconds. Sections may be recorded from several
+ * threads at once, as they are when phase processors run concurrently.
+ * <p>
+ * At the end of each step, the record is written as a single line to the
+ * "Profile" logger, which LogService directs to the game's .profile file.
+ * Samples are kept for the most recent steps, from which summary()
+ * computes percentiles for each section.</p>
+ */
+public class StepProfiler
+{
+  static private Logger profileLog = Logger.getLogger("Profile");
+
+  // number of steps retained for percentiles
+  private int window;
+
+  private long stepStart = 0l;
+  private Map<String, Long> current = new LinkedHashMap<String, Long>();
+  private Map<String, List<Long>> samples =
+      new LinkedHashMap<String, List<Long>>();
+
+  public StepProfiler (int window)
+  {
+    super();
+    this.window = Math.max(1, window);
+  }
+
+  /**
+   * Starts the record for a new step.
+   */
+  public synchronized void startStep ()
+  {
+    current.clear();
+    stepStart = System.nanoTime();
+  }
+
+  /**
+   * Returns a start time for a section, to be passed to record().
+   */
+  public long start ()
+  {
+    return System.nanoTime();
+  }
+
+  /**
+   * Records the time since start under the given section name. Repeated
+   * sections within a step are summed.
+   */
+  public void record (String section, long start)
+  {
+    long micros = (System.nanoTime() - start) / 1000;
+    synchronized (this) {
+      Long previous = current.get(section);
+      current.put(section, (null == previous) ? micros : previous + micros);
+    }
+  }
+
+  /**
+   * Ends the current step, writes it to the profile log under the given
+   * timeslot index, and returns the step record in the form
+   * "total=t,section=t,...".
+   */
+  public synchronized String endStep (int timeslot)
+  {
+    record("total", stepStart);
+    StringBuilder sb = new StringBuilder();
+    String delim = "";
+    for (Map.Entry<String, Long> entry : current.entrySet()) {
+      sb.append(delim).append(entry.getKey()).append("=")
+        .append(entry.getValue());
+      delim = ",";
+      addSample(entry.getKey(), entry.getValue());
+    }
+    String result = sb.toString();
+    profileLog.info(timeslot + ":" + result);
+    return result;
+  }
+
+  /**
+   * Returns the elapsed time of the most recent step in milliseconds.
+   */
+  public synchronized long getStepMillis ()
+  {
+    Long total = current.get("total");
+    return (null == total) ? 0l : total / 1000;
+  }
+
+  /**
+   * Returns the given percentile of the retained samples for a section,
+   * or -1 if there are none.
+   */
+  public synchronized long percentile (String section, double pct)
+  {
+    List<Long> values = samples.get(section);
+    if (null == values || values.isEmpty())
+      return -1l;
+    List<Long> sorted = new ArrayList<Long>(values);
+    Collections.sort(sorted);
+    int index = (int)Math.ceil(pct / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+  }
+
+  /**
+   * Returns the p50, p90, p99 and max times of each section, one line
+   * per section, and writes them to the profile log.
+   */
+  public synchronized String summary ()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (String section : samples.keySet()) {
+      String line = section + ": n=" + samples.get(section).size()
+          + " p50=" + percentile(section, 50.0)
+          + " p90=" + percentile(section, 90.0)
+          + " p99=" + percentile(section, 99.0)
+          + " max=" + percentile(section, 100.0);
+      profileLog.info("summary:" + line);
+      sb.append(line).append("\n");
+    }
+    return sb.toString();
+  }
+
+  private void addSample (String section, long value)
+  {
+    List<Long> values = samples.get(section);
+    if (null == values) {
+      values = new ArrayList<Long>();
+      samples.put(section, values);
+    }
+    if (values.size() >= window)
+      values.remove(0);
+    values.add(value);
+  }
+}
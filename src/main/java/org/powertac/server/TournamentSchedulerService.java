@@ -129,6 +129,16 @@ public class TournamentSchedulerService
   }
 
   public void heartbeat (int timeslotIndex, String standings, long elapsed)
+  {
+    heartbeat(timeslotIndex, standings, elapsed, null);
+  }
+
+  /**
+   * Sends a heartbeat, including the step profile of the timeslot
+   * in the form produced by StepProfiler.endStep(), if it's not null.
+   */
+  public void heartbeat (int timeslotIndex, String standings, long elapsed,
+                         String profile)
   {
     if (tournamentSchedulerUrl.isEmpty()) {
       return;
@@ -141,6 +151,9 @@ public class TournamentSchedulerService
           + "&message=" + timeslotIndex
           + "&standings=" + URLEncoder.encode(standings, "UTF-8")
           + "&elapsedTime=" + elapsed;
+      if (null != profile) {
+        finalUrl += "&profile=" + URLEncoder.encode(profile, "UTF-8");
+      }
 
       URL url = new URL(finalUrl);
       URLConnection conn = url.openConnection();
@@ -81,21 +81,41 @@ implements VisualizerProxy, InitializationService
       listeners.add(listener);
   }
 
+  /**
+   * True if messages are being forwarded to a remote visualizer.
+   */
+  public boolean isRemoteVisualizer ()
+  {
+    return remoteVisualizer;
+  }
+
   @Override
   public void forwardMessage (Object message)
+  {
+    forwardMessage(message, null);
+  }
+
+  /**
+   * Forwards a message for which the caller may already have the serialized
+   * form, as in a broadcast. If text is null, the message will be
+   * serialized here if it's needed for a remote visualizer.
+   */
+  public void forwardMessage (Object message, String text)
   {
     for (VisualizerMessageListener listener : listeners)
       listener.receiveMessage(message);
     if (remoteVisualizer) {
       // send messages to queue
-      final String text = converter.toXML(message);
+      if (null == text)
+        text = converter.toXML(message);
+      final String xml = text;
       //log.info("send " + text);
 
       template.send(visualizerQueueName, new MessageCreator() {
         @Override
         public Message createMessage (Session session) throws JMSException
         {
-          TextMessage message = session.createTextMessage(text);
+          TextMessage message = session.createTextMessage(xml);
           return message;
         }
       });
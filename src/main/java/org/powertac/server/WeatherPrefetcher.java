@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * Fetches days of weather ahead of need on a small pool of daemon
+ * threads. A day is fetched at most once: requests for a day that is
+ * already in flight or fetched are ignored. A failed fetch is retried
+ * after a delay that doubles with each attempt, up to a limit, and the
+ * day is given up after a fixed number of attempts. Because the number of
+ * days requested at any time is bounded by the caller's lookahead, so is
+ * the number of queued tasks.
+ * <p>
+ * When a day is needed, claim() reports whether it has arrived, and
+ * records how long before the need it did, which is the lead time of the
+ * prefetch. Lead times are usually minutes or hours, so only their count,
+ * min, mean and max are kept, in msec. Days that had not arrived are
+ * counted as misses.</p>
+ */
+public class WeatherPrefetcher
+{
+  static private Logger log = Logger.getLogger(WeatherPrefetcher.class);
+
+  /**
+   * Fetches a single day of weather, returning true on success.
+   */
+  public interface Source
+  {
+    boolean fetch (DateTime day);
+  }
+
+  private Source source;
+  private long retryDelay;
+  private long maxRetryDelay;
+  private int maxAttempts;
+  private ScheduledThreadPoolExecutor executor;
+
+  // days in flight, and completion times of fetched days
+  private Set<DateTime> inFlight = new HashSet<DateTime>();
+  private Map<DateTime, Long> fetched = new HashMap<DateTime, Long>();
+
+  // lead times of claimed days, in msec
+  private int leadCount = 0;
+  private long leadTotal = 0l;
+  private long leadMin = 0l;
+  private long leadMax = 0l;
+  private int misses = 0;
+  private int failures = 0;
+  private int retries = 0;
+
+  public WeatherPrefetcher (Source source, int threads, long retryDelay,
+                            long maxRetryDelay, int maxAttempts)
+  {
+    super();
+    this.source = source;
+    this.retryDelay = Math.max(1l, retryDelay);
+    this.maxRetryDelay = Math.max(this.retryDelay, maxRetryDelay);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    final AtomicInteger count = new AtomicInteger();
+    executor = new ScheduledThreadPoolExecutor(Math.max(1, threads),
+                                               new ThreadFactory() {
+      @Override
+      public Thread newThread (Runnable task)
+      {
+        Thread thread = new Thread(task, "weather-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Fetches a day on the caller's thread, unless it is already in flight
+   * or fetched. Returns true if the day is now available.
+   */
+  public boolean fetchNow (DateTime day)
+  {
+    if (!begin(day))
+      return isFetched(day);
+    boolean success = source.fetch(day);
+    finish(day, success);
+    return success;
+  }
+
+  /**
+   * Schedules a day to be fetched in the background, unless it is already
+   * in flight or fetched.
+   */
+  public void request (DateTime day)
+  {
+    if (begin(day))
+      schedule(day, 1, 0l);
+  }
+
+  /**
+   * Called when a day is needed. Returns true if it has been fetched, and
+   * records the lead time or the miss.
+   */
+  public synchronized boolean claim (DateTime day)
+  {
+    Long done = fetched.get(day);
+    if (null == done) {
+      misses += 1;
+      log.warn("Weather for " + day + " not yet available");
+      return false;
+    }
+    long lead = System.currentTimeMillis() - done;
+    if (0 == leadCount || lead < leadMin)
+      leadMin = lead;
+    if (0 == leadCount || lead > leadMax)
+      leadMax = lead;
+    leadCount += 1;
+    leadTotal += lead;
+    return true;
+  }
+
+  public synchronized boolean isFetched (DateTime day)
+  {
+    return fetched.containsKey(day);
+  }
+
+  public synchronized boolean isInFlight (DateTime day)
+  {
+    return inFlight.contains(day);
+  }
+
+  /**
+   * Returns the number of claimed days with a recorded lead time.
+   */
+  public synchronized int getLeadCount ()
+  {
+    return leadCount;
+  }
+
+  /**
+   * Returns the shortest lead time in msec, or 0 if none was recorded.
+   */
+  public synchronized long getMinLead ()
+  {
+    return leadMin;
+  }
+
+  /**
+   * Returns the mean lead time in msec, or 0 if none was recorded.
+   */
+  public synchronized double getMeanLead ()
+  {
+    return (0 == leadCount) ? 0.0 : (double) leadTotal / leadCount;
+  }
+
+  /**
+   * Returns the longest lead time in msec, or 0 if none was recorded.
+   */
+  public synchronized long getMaxLead ()
+  {
+    return leadMax;
+  }
+
+  public synchronized int getMisses ()
+  {
+    return misses;
+  }
+
+  public synchronized int getFailures ()
+  {
+    return failures;
+  }
+
+  public synchronized int getRetries ()
+  {
+    return retries;
+  }
+
+  public synchronized String summary ()
+  {
+    return "fetched=" + fetched.size() + " inFlight=" + inFlight.size()
+        + " misses=" + misses + " retries=" + retries
+        + " failures=" + failures + " lead: n=" + leadCount
+        + " min=" + leadMin + " mean=" + Math.round(getMeanLead())
+        + " max=" + leadMax + " msec";
+  }
+
+  /**
+   * Stops the threads; fetches in progress are abandoned.
+   */
+  public void shutDown ()
+  {
+    executor.shutdownNow();
+    log.info("Weather prefetch " + summary());
+  }
+
+  // marks a day in flight, returning false if it already is or is done
+  private synchronized boolean begin (DateTime day)
+  {
+    if (fetched.containsKey(day) || inFlight.contains(day))
+      return false;
+    inFlight.add(day);
+    return true;
+  }
+
+  private synchronized void finish (DateTime day, boolean success)
+  {
+    inFlight.remove(day);
+    if (success)
+      fetched.put(day, System.currentTimeMillis());
+  }
+
+  private void schedule (final DateTime day, final int attempt, long delay)
+  {
+    try {
+      executor.schedule(new Runnable() {
+        @Override
+        public void run ()
+        {
+          attempt(day, attempt);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException ree) {
+      // shutDown() came first; the day will not be fetched
+      log.debug("Weather for " + day + " not scheduled after shutdown");
+      finish(day, false);
+    }
+  }
+
+  private void attempt (DateTime day, int attempt)
+  {
+    boolean success = false;
+    try {
+      success = source.fetch(day);
+    }
+    catch (RuntimeException re) {
+      log.error("Weather fetch for " + day + " failed: " + re.toString());
+    }
+    if (success) {
+      finish(day, true);
+    }
+    else if (attempt < maxAttempts) {
+      long delay = Math.min(maxRetryDelay, retryDelay << Math.min(attempt - 1, 30));
+      synchronized (this) {
+        retries += 1;
+      }
+      log.warn("Retrying weather for " + day + " in " + delay + " msec");
+      schedule(day, attempt + 1, delay);
+    }
+    else {
+      log.error("Giving up on weather for " + day + " after "
+                + attempt + " attempts");
+      synchronized (this) {
+        failures += 1;
+      }
+      finish(day, false);
+    }
+  }
+}
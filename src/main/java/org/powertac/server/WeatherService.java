@@ -26,9 +26,12 @@ package org.powertac.server;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.DataHolder;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.XppDriver;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeFieldType;
@@ -45,25 +48,14 @@ import org.powertac.common.repo.WeatherForecastRepo;
 import org.powertac.common.repo.WeatherReportRepo;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+
 import java.io.*;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 @Service
@@ -82,7 +74,7 @@ public class WeatherService extends TimeslotPhaseProcessor implements
   @ConfigurableValue(valueType = "Boolean", description = "If network calls to weather server should block until finished")
   private boolean blocking = true;
 
-  @ConfigurableValue(valueType = "String", description = "Location of weather file (XML or state) or URL (state)")
+  @ConfigurableValue(valueType = "String", description = "Location of weather file (XML, state or wbin) or URL (state)")
   private String weatherData = "";
 
   // length of reports and forecasts. Can't really change this
@@ -92,6 +84,21 @@ public class WeatherService extends TimeslotPhaseProcessor implements
   @ConfigurableValue(valueType = "Integer", description = "Length of forecasts (in hours)")
   private int forecastHorizon = 24; // 24 hours
 
+  @ConfigurableValue(valueType = "Integer", description = "Days of weather to fetch ahead in non-blocking mode")
+  private int prefetchDays = 3;
+
+  @ConfigurableValue(valueType = "Integer", description = "Threads fetching weather in non-blocking mode")
+  private int prefetchThreads = 2;
+
+  @ConfigurableValue(valueType = "Long", description = "Delay in msec before the first retry of a failed fetch")
+  private long retryDelay = 1000l;
+
+  @ConfigurableValue(valueType = "Long", description = "Longest delay in msec between retries")
+  private long maxRetryDelay = 60000l;
+
+  @ConfigurableValue(valueType = "Integer", description = "Attempts to fetch a day before giving up")
+  private int maxFetchAttempts = 6;
+
   @Autowired
   private TimeslotRepo timeslotRepo;
 
@@ -107,10 +114,28 @@ public class WeatherService extends TimeslotPhaseProcessor implements
   @Autowired
   private ServerConfiguration serverProps;
 
-  // These dates need to be fetched when using not blocking
-  private List<DateTime> aheadDays = new CopyOnWriteArrayList<DateTime>();
+  // Weather xml parser, configured once and shared by all requests.
+  // The time index of the first report is passed to the report converter
+  // through the unmarshalling context under this key.
+  private static final String TIME_INDEX = "timeIndex";
+  private XStream weatherXStream = null;
+  private HierarchicalStreamDriver weatherDriver = new XppDriver();
+
+  // Fetches days ahead when not blocking
+  private WeatherPrefetcher prefetcher = null;
   private DateTime simulationBaseTime;
-  private int daysAhead = 3;
+
+  // index of the weather XML file, loaded on first use
+  private WeatherXmlIndex xmlIndex = null;
+  private String xmlIndexFile = null;
+
+  // mapped binary weather file, opened on first use
+  private WeatherStore weatherStore = null;
+  private String weatherStoreFile = null;
+
+  // index of the weather state log, loaded on first use
+  private StateFileIndex stateIndex = null;
+  private String stateIndexFile = null;
 
 
   public int getWeatherReqInterval ()
@@ -182,14 +207,15 @@ public class WeatherService extends TimeslotPhaseProcessor implements
       DateTime dateTime = timeslotRepo.currentTimeslot().getStartTime();
       if (blocking) {
         WeatherRequester wr = new WeatherRequester(dateTime);
-        wr.run();
+        wr.fetch();
       }
       else {
-        aheadDays.add(dateTime.plusDays(daysAhead));
-        while (aheadDays.size() > 0) {
-          WeatherRequester wr = new WeatherRequester(aheadDays.remove(0));
-          new Thread(wr).start();
+        // never waits; the day should have been fetched already
+        prefetcher.claim(dateTime);
+        for (int i = 1; i <= prefetchDays; i++) {
+          prefetcher.request(dateTime.plusDays(i));
         }
+        log.debug("Weather prefetch " + prefetcher.summary());
       }
     }
 
@@ -260,17 +286,29 @@ public class WeatherService extends TimeslotPhaseProcessor implements
     simulationBaseTime = competition.getSimulationBaseTime().toDateTime();
 
     if (weatherData != null
-        && (weatherData.endsWith(".xml") || weatherData.endsWith(".state"))) {
+        && (weatherData.endsWith(".xml") || weatherData.endsWith(".state")
+            || weatherData.endsWith(WeatherStore.EXTENSION))) {
       log.info("read from file in blocking mode");
       blocking = true;
     }
 
+    if (prefetcher != null) {
+      prefetcher.shutDown();
+      prefetcher = null;
+    }
     if (!blocking) {
+      prefetcher = new WeatherPrefetcher(new WeatherPrefetcher.Source() {
+        @Override
+        public boolean fetch (DateTime day)
+        {
+          return new WeatherRequester(day).fetch();
+        }
+      }, prefetchThreads, retryDelay, maxRetryDelay, maxFetchAttempts);
+
       DateTime dateTime = timeslotRepo.currentTimeslot().getStartTime();
-      // Get the first 3 days of weather, blocking!
-      for (int i = 0; i < daysAhead; i++) {
-        WeatherRequester weatherRequester = new WeatherRequester(dateTime);
-        weatherRequester.run();
+      // Get the first days of weather, blocking!
+      for (int i = 0; i < prefetchDays; i++) {
+        prefetcher.fetchNow(dateTime);
         dateTime = dateTime.plusDays(1);
       }
     }
@@ -278,7 +316,77 @@ public class WeatherService extends TimeslotPhaseProcessor implements
     return "WeatherService";
   }
 
-  private class WeatherRequester implements Runnable
+  // Returns the weather xml parser, creating it on first use. Once
+  // configured, XStream is safe to use from several threads.
+  private synchronized XStream getWeatherXStream ()
+  {
+    if (null == weatherXStream) {
+      XStream xstream = new XStream(weatherDriver);
+      xstream.alias("data", Data.class);
+      xstream.alias("weatherReport", WeatherReport.class);
+      xstream.alias("weatherForecast", WeatherForecastPrediction.class);
+
+      // Xml uses attributes for more compact data
+      xstream.useAttributeFor(WeatherReport.class);
+      xstream.registerConverter(new WeatherReportConverter());
+
+      // Xml uses attributes for more compact data
+      xstream.useAttributeFor(WeatherForecastPrediction.class);
+      xstream.registerConverter(new WeatherForecastConverter());
+      weatherXStream = xstream;
+    }
+    return weatherXStream;
+  }
+
+  // Returns the index of the weather XML file, loading it if needed.
+  // Returns null if the file cannot be read.
+  private synchronized WeatherXmlIndex getXmlIndex ()
+  {
+    if (null == xmlIndex || !weatherData.equals(xmlIndexFile)) {
+      try {
+        xmlIndex = WeatherXmlIndex.load(weatherData);
+        xmlIndexFile = weatherData;
+      }
+      catch (Exception e) {
+        log.error("Cannot read weather file " + weatherData
+                  + ": " + e.toString());
+        xmlIndex = null;
+      }
+    }
+    return xmlIndex;
+  }
+
+  // Returns the mapped binary weather file, opening it if needed.
+  // Returns null if the file cannot be read.
+  private synchronized WeatherStore getWeatherStore ()
+  {
+    if (null == weatherStore || !weatherData.equals(weatherStoreFile)) {
+      try {
+        weatherStore = WeatherStore.open(weatherData);
+        weatherStoreFile = weatherData;
+      }
+      catch (IOException e) {
+        log.error("Cannot read weather file " + weatherData
+                  + ": " + e.toString());
+        weatherStore = null;
+      }
+    }
+    return weatherStore;
+  }
+
+  // Returns the index of the weather state log, loading or building it
+  // if needed. Returns null if the log is not a local file or cannot be
+  // read.
+  private synchronized StateFileIndex getStateIndex ()
+  {
+    if (null == stateIndex || !weatherData.equals(stateIndexFile)) {
+      stateIndex = StateFileIndex.get(weatherData);
+      stateIndexFile = weatherData;
+    }
+    return stateIndex;
+  }
+
+  private class WeatherRequester
   {
     private DateTime requestDate;
 
@@ -287,8 +395,8 @@ public class WeatherService extends TimeslotPhaseProcessor implements
       this.requestDate = requestDate;
     }
 
-    @Override
-    public void run ()
+    // Fetches the day's weather into the repos, returning true on success
+    public boolean fetch ()
     {
       String currentMethod = "";
       try {
@@ -296,9 +404,12 @@ public class WeatherService extends TimeslotPhaseProcessor implements
 
         if (weatherData != null && weatherData.endsWith(".xml")) {
           currentMethod = "xml file";
-          WeatherXmlExtractor wxe = new WeatherXmlExtractor(weatherData);
-          String weatherXml = wxe.extractPartialXml(requestDate);
-          data = parseXML(weatherXml);
+          data = xmlRequest();
+        }
+        else if (weatherData != null
+                 && weatherData.endsWith(WeatherStore.EXTENSION)) {
+          currentMethod = "binary file";
+          data = storeRequest();
         }
         else if (weatherData != null && weatherData.endsWith(".state")) {
           currentMethod = "state file";
@@ -314,16 +425,77 @@ public class WeatherService extends TimeslotPhaseProcessor implements
         processData(data);
 
         log.debug("Got data via a " + currentMethod + " request");
+        return true;
       }
       catch (Exception e) {
-        log.error("Unable to get weather from weather : " + currentMethod);
-        if (!blocking) {
-          log.warn("Retrying : " + dateStringLong(requestDate));
-          aheadDays.add(requestDate);
+        log.error("Unable to get weather for " + dateStringLong(requestDate)
+            + " from : " + currentMethod);
+        log.error(e.getMessage());
+        return false;
+      }
+    }
+
+    // Takes $weatherReqInterval reports starting at the request date, and
+    // the forecasts made at each of those hours, from the xml file index.
+    private Data xmlRequest ()
+    {
+      WeatherXmlIndex index = getXmlIndex();
+      if (null == index) {
+        return null;
+      }
+
+      Data data = new Data();
+      int timeIndex = getTimeIndex(requestDate);
+      for (double[] report : index.getReports(dateStringLong(requestDate),
+                                              weatherReqInterval)) {
+        data.getWeatherReports().add(
+            new WeatherReport(timeIndex++,
+                report[0], report[1], report[2], report[3]));
+      }
+      for (int i = 0; i < weatherReqInterval; i++) {
+        String origin = dateStringLong(requestDate.plusHours(i));
+        for (double[] prediction : index.getForecast(origin)) {
+          data.getWeatherForecasts().add(
+              new WeatherForecastPrediction((int) prediction[0],
+                  prediction[1], prediction[2], prediction[3], prediction[4]));
         }
+      }
 
-        log.error(e.getMessage());
+      if (data.weatherReports.size() != weatherReqInterval ||
+          data.weatherForecasts.size() != weatherReqInterval * forecastHorizon) {
+        return null;
+      }
+      return data;
+    }
+
+    // Takes $weatherReqInterval reports and forecasts starting at the
+    // request date from the binary weather file.
+    private Data storeRequest ()
+    {
+      WeatherStore store = getWeatherStore();
+      if (null == store) {
+        return null;
+      }
+
+      Data data = new Data();
+      int timeIndex = getTimeIndex(requestDate);
+      int hour = store.hourOf(requestDate.getMillis());
+      for (int i = 0; i < weatherReqInterval; i++) {
+        double[] report = store.getReport(hour + i);
+        double[][] forecast = store.getForecast(hour + i, forecastHorizon);
+        if (null == report || null == forecast) {
+          return null;
+        }
+        data.getWeatherReports().add(
+            new WeatherReport(timeIndex++,
+                report[0], report[1], report[2], report[3]));
+        for (int j = 0; j < forecastHorizon; j++) {
+          data.getWeatherForecasts().add(
+              new WeatherForecastPrediction(j + 1, forecast[j][0],
+                  forecast[j][1], forecast[j][2], forecast[j][3]));
+        }
       }
+      return data;
     }
 
     private Data webRequest ()
@@ -369,26 +541,27 @@ public class WeatherService extends TimeslotPhaseProcessor implements
 
       Data data = null;
       try {
-        // Set up stream and aliases
-        XStream xstream = new XStream();
-        xstream.alias("data", Data.class);
-        xstream.alias("weatherReport", WeatherReport.class);
-        xstream.alias("weatherForecast", WeatherForecastPrediction.class);
-
-        // Xml uses attributes for more compact data
-        xstream.useAttributeFor(WeatherReport.class);
-        xstream.registerConverter(new WeatherReportConverter(requestDate));
-
-        // Xml uses attributes for more compact data
-        xstream.useAttributeFor(WeatherForecastPrediction.class);
-        xstream.registerConverter(new WeatherForecastConverter());
-
-        // Unmarshall the xml input and place it into data container object
+        XStream xstream = getWeatherXStream();
+        HierarchicalStreamReader reader = null;
         if (input.getClass().equals(BufferedReader.class)) {
-          data = (Data) xstream.fromXML((BufferedReader) input);
+          reader = weatherDriver.createReader((BufferedReader) input);
         }
         else if (input.getClass().equals(String.class)) {
-          data = (Data) xstream.fromXML((String) input);
+          reader = weatherDriver.createReader(new StringReader((String) input));
+        }
+
+        // Unmarshall the xml input and place it into data container object,
+        // numbering the reports from the request date
+        if (reader != null) {
+          DataHolder holder = xstream.newDataHolder();
+          holder.put(TIME_INDEX,
+                     new AtomicInteger(getTimeIndex(requestDate)));
+          try {
+            data = (Data) xstream.unmarshal(reader, null, holder);
+          }
+          finally {
+            reader.close();
+          }
         }
 
         if (data != null && (data.weatherReports.size() != weatherReqInterval ||
@@ -445,16 +618,13 @@ public class WeatherService extends TimeslotPhaseProcessor implements
   }
 
   // Helper classes
-  // This works only if you create a new one, or init the timeIndex,
-  // prior to processing a batch
+  // Numbers reports from the time index found in the unmarshalling
+  // context, so a single instance serves all requests
   private class WeatherReportConverter implements Converter
   {
-    private int timeIndex;
-
-    public WeatherReportConverter (DateTime requestDate)
+    public WeatherReportConverter ()
     {
       super();
-      this.timeIndex = getTimeIndex(requestDate);
     }
 
     @Override
@@ -478,7 +648,8 @@ public class WeatherService extends TimeslotPhaseProcessor implements
       String dir = reader.getAttribute("winddir");
       String cloudCvr = reader.getAttribute("cloudcover");
 
-      return new WeatherReport(timeIndex++,
+      AtomicInteger timeIndex = (AtomicInteger) context.get(TIME_INDEX);
+      return new WeatherReport(timeIndex.getAndIncrement(),
           Double.parseDouble(temp), Double.parseDouble(wind),
           Double.parseDouble(dir), Double.parseDouble(cloudCvr));
     }
@@ -545,145 +716,6 @@ public class WeatherService extends TimeslotPhaseProcessor implements
     }
   }
 
-  private class WeatherXmlExtractor
-  {
-    /**
-     * This class extracts a part of a weather-xml, which contacins the weather
-     * for the complete duration of the simulation.
-     * It returns 24 reports and 24 * 24 forecasts
-     */
-    private NodeList nodeListRead = null;
-    private Document documentWrite;
-    private Element weatherReports;
-    private Element weatherForecasts;
-
-    public WeatherXmlExtractor (String fileName)
-    {
-      try {
-        DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory
-            .newInstance();
-        DocumentBuilder docBuilderRead = docBuilderFactory.newDocumentBuilder();
-        Document documentRead = docBuilderRead.parse(new File(fileName));
-        Node rootNode = documentRead.getDocumentElement();
-        nodeListRead = rootNode.getChildNodes();
-
-        // Output document
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilderWrite = docFactory.newDocumentBuilder();
-        documentWrite = docBuilderWrite.newDocument();
-        documentWrite.setXmlStandalone(true);
-        Element rootElement = documentWrite.createElement("data");
-        documentWrite.appendChild(rootElement);
-
-        // weatherReports and weatherForecasts elements
-        weatherReports = documentWrite.createElement("weatherReports");
-        rootElement.appendChild(weatherReports);
-        weatherForecasts = documentWrite.createElement("weatherForecasts");
-        rootElement.appendChild(weatherForecasts);
-      }
-      catch (Exception ignored) {
-      }
-    }
-
-    private String extractPartialXml (DateTime requestDate)
-    {
-      if (nodeListRead == null) {
-        return null;
-      }
-
-      try {
-        // Find 24 weatherReport starting at startDate
-        for (int i = 0; i < nodeListRead.getLength(); i++) {
-          Node currentNode = nodeListRead.item(i);
-
-          if (!currentNode.getNodeName().equals("weatherReports")) {
-            continue;
-          }
-
-          NodeList nodeListReports = currentNode.getChildNodes();
-          findReports(nodeListReports, dateStringLong(requestDate));
-        }
-
-        // Find all weatherForecasts belonging to the 24 reports
-        for (int i = 0; i < weatherReqInterval; i++) {
-          for (int j = 0; j < nodeListRead.getLength(); j++) {
-            Node currentNode = nodeListRead.item(j);
-
-            if (!currentNode.getNodeName().equals("weatherForecasts")) {
-              continue;
-            }
-
-            String origin = dateStringLong(requestDate.plusHours(i));
-            NodeList nodes = currentNode.getChildNodes();
-            findForecasts(nodes, origin);
-          }
-        }
-
-        if (weatherReports.getChildNodes().getLength() != weatherReqInterval ||
-            weatherForecasts.getChildNodes().getLength() !=
-                weatherReqInterval * forecastHorizon) {
-          return null;
-        }
-
-        TransformerFactory transFactory = TransformerFactory.newInstance();
-        Transformer transformer = transFactory.newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        StringWriter buffer = new StringWriter();
-        transformer.transform(new DOMSource(documentWrite), new StreamResult(buffer));
-
-        return buffer.toString();
-      }
-      catch (Exception e) {
-        e.printStackTrace();
-      }
-      return null;
-    }
-
-    private void findReports (NodeList nodes, String startDate)
-    {
-      // Find reports starting at startDate, copy 24 reports to output document
-      for (int j = 0; j < nodes.getLength(); j++) {
-        Node report = nodes.item(j);
-        if (!report.getNodeName().equals("weatherReport")) {
-          continue;
-        }
-
-        // TODO We shouldn't assume the reports are ordered on date
-        String date = ((Element) report).getAttribute("date");
-        if (date.compareTo(startDate) < 0) {
-          continue;
-        }
-
-        Node temp = documentWrite.importNode(report, true);
-        weatherReports.appendChild(temp);
-
-        if (weatherReports.getChildNodes().getLength() == weatherReqInterval) {
-          break;
-        }
-      }
-    }
-
-    private void findForecasts (NodeList nodes, String target)
-    {
-      // Find all forecasts belonging to a report-date, copy to output document
-      for (int i = 0; i < nodes.getLength(); i++) {
-        Node forecast = nodes.item(i);
-
-        if (!forecast.getNodeName().equals("weatherForecast")) {
-          continue;
-        }
-
-        String origin = ((Element) forecast).getAttribute("origin");
-        if (!origin.equals(target)) {
-          continue;
-        }
-
-        Node temp = documentWrite.importNode(forecast, true);
-        weatherForecasts.appendChild(temp);
-      }
-    }
-  }
-
   /**
    * This class extracts a part of a state file (or URL).
    * It returns $weatherReqInterval reports
@@ -718,8 +750,15 @@ public class WeatherService extends TimeslotPhaseProcessor implements
       BufferedReader br = null;
       try {
         Data data = new Data();
-        br = new BufferedReader(
-            new InputStreamReader(weatherSource.openStream()));
+        // local files are read from the first report needed
+        StateFileIndex index = getStateIndex();
+        if (index != null) {
+          br = index.openReader(startIndex);
+        }
+        else {
+          br = new BufferedReader(
+              new InputStreamReader(weatherSource.openStream()));
+        }
 
         String line;
         boolean inRange = false;
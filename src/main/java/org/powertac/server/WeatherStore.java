@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Read-only, memory-mapped weather data in the binary ".wbin" format.
+ * The file has a fixed 32-byte header: magic number and version (ints),
+ * the start time of hour 0 in msec (long), the number of hours and the
+ * forecast horizon (ints), and 8 reserved bytes. It is followed by one
+ * report record per hour of {temp, windspeed, winddir, cloudcover}, and
+ * then one forecast record per hour holding horizon predictions of the
+ * same four values. All values are big-endian doubles, and NaN marks a
+ * missing report or forecast. Prediction ids are implicit, 1..horizon.
+ * <p>
+ * Because records have fixed size, the data for any hour is found by
+ * offset alone, without parsing. The mapping is shared by all threads,
+ * and the operating system shares the page-cached file among processes.
+ * Files are produced by WeatherStoreConverter.</p>
+ */
+public class WeatherStore
+{
+  static private Logger log = Logger.getLogger(WeatherStore.class);
+
+  static final int MAGIC = 0x50545742; // "PTWB"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 32;
+  static final int VALUES = 4;
+  static final String EXTENSION = ".wbin";
+
+  private ByteBuffer buffer;
+  private long startMillis;
+  private int hours;
+  private int horizon;
+  private int forecastBase;
+
+  /**
+   * Maps the named file.
+   */
+  public static WeatherStore open (String fileName) throws IOException
+  {
+    RandomAccessFile file = new RandomAccessFile(fileName, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      MappedByteBuffer map =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      WeatherStore store = new WeatherStore(map);
+      log.info("Mapped " + fileName + ": " + store.hours + " hours, horizon "
+               + store.horizon);
+      return store;
+    }
+    finally {
+      // the mapping remains valid after the channel is closed
+      file.close();
+    }
+  }
+
+  /**
+   * Writes a store. Row h of reports holds the report values for hour h,
+   * and row h of forecasts holds the values of the horizon predictions
+   * made at hour h, in order. Null rows are written as missing.
+   */
+  public static void write (String fileName, long startMillis,
+                            double[][] reports, double[][] forecasts,
+                            int horizon)
+    throws IOException
+  {
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(startMillis);
+      out.writeInt(reports.length);
+      out.writeInt(horizon);
+      out.writeLong(0l);
+      for (double[] report : reports) {
+        writeRecord(out, report, VALUES);
+      }
+      for (double[] forecast : forecasts) {
+        writeRecord(out, forecast, VALUES * horizon);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static void writeRecord (DataOutputStream out, double[] values,
+                                   int size)
+    throws IOException
+  {
+    for (int i = 0; i < size; i++) {
+      out.writeDouble((null == values) ? Double.NaN : values[i]);
+    }
+  }
+
+  WeatherStore (ByteBuffer buffer) throws IOException
+  {
+    super();
+    this.buffer = buffer;
+    if (buffer.getInt(0) != MAGIC)
+      throw new IOException("Not a binary weather file");
+    if (buffer.getInt(4) != VERSION)
+      throw new IOException("Unsupported weather file version "
+                            + buffer.getInt(4));
+    startMillis = buffer.getLong(8);
+    hours = buffer.getInt(16);
+    horizon = buffer.getInt(20);
+    forecastBase = HEADER_SIZE + hours * VALUES * 8;
+    if (buffer.capacity() < forecastBase + hours * horizon * VALUES * 8)
+      throw new IOException("Truncated weather file");
+  }
+
+  /**
+   * Returns the start time of hour 0 in msec.
+   */
+  public long getStartMillis ()
+  {
+    return startMillis;
+  }
+
+  /**
+   * Returns the number of hours in the store.
+   */
+  public int getHours ()
+  {
+    return hours;
+  }
+
+  /**
+   * Returns the number of predictions in each forecast.
+   */
+  public int getHorizon ()
+  {
+    return horizon;
+  }
+
+  /**
+   * Returns the hour index of the given time, which may be out of range.
+   */
+  public int hourOf (long millis)
+  {
+    return (int) Math.floor((millis - startMillis) / 3600000.0);
+  }
+
+  /**
+   * Returns the report values for the given hour, or null if there is no
+   * report for that hour.
+   */
+  public double[] getReport (int hour)
+  {
+    if (hour < 0 || hour >= hours)
+      return null;
+    double[] result = readValues(HEADER_SIZE + hour * VALUES * 8, VALUES);
+    return Double.isNaN(result[0]) ? null : result;
+  }
+
+  /**
+   * Returns the first count predictions of the forecast made at the given
+   * hour, each as {temp, windspeed, winddir, cloudcover}, or null if there
+   * is no such forecast or count exceeds the horizon.
+   */
+  public double[][] getForecast (int hour, int count)
+  {
+    if (hour < 0 || hour >= hours || count > horizon)
+      return null;
+    int base = forecastBase + hour * horizon * VALUES * 8;
+    double[][] result = new double[count][];
+    for (int i = 0; i < count; i++) {
+      result[i] = readValues(base + i * VALUES * 8, VALUES);
+      if (Double.isNaN(result[i][0]))
+        return null;
+    }
+    return result;
+  }
+
+  // absolute reads leave the buffer position alone, so they are safe to
+  // use from several threads
+  private double[] readValues (int offset, int count)
+  {
+    double[] result = new double[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = buffer.getDouble(offset + i * 8);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Converts a weather XML file or a state log to the binary format read
+ * by WeatherStore. Usage:
+ * <pre>  WeatherStoreConverter input.xml|input.state output.wbin</pre>
+ * For an XML file, hour 0 is the date of the earliest report. For a
+ * state log, hour 0 is the simulation base time of the logged game, so
+ * the hour index of a report is its timeslot serial number, and the
+ * forecasts following the first report are assigned to successive hours,
+ * as they are when WeatherService reads the state log directly.
+ * <p>
+ * The store numbers the predictions of each forecast implicitly, so they
+ * are written in id order. The predictions of an XML forecast are sorted
+ * by id, and a forecast whose ids are not 1..horizon is an error.</p>
+ */
+public class WeatherStoreConverter
+{
+  static final DateTimeFormatter dateFormat =
+      DateTimeFormat.forPattern("yyyy-MM-dd HH:mm").withZone(DateTimeZone.UTC);
+
+  static final String REPORT = "org.powertac.common.WeatherReport";
+  static final String PREDICTION =
+      "org.powertac.common.WeatherForecastPrediction";
+
+  public static void main (String[] args)
+  {
+    if (args.length != 2 || !args[1].endsWith(WeatherStore.EXTENSION)) {
+      System.err.println("Usage: WeatherStoreConverter input.xml|input.state"
+                         + " output" + WeatherStore.EXTENSION);
+      System.exit(1);
+    }
+    try {
+      if (args[0].endsWith(".xml"))
+        convertXml(args[0], args[1]);
+      else if (args[0].endsWith(".state"))
+        convertState(args[0], args[1]);
+      else {
+        System.err.println("Input must be an .xml or .state file");
+        System.exit(1);
+      }
+    }
+    catch (Exception e) {
+      System.err.println("Cannot convert " + args[0] + ": " + e.toString());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Converts a weather XML file.
+   */
+  public static void convertXml (String input, String output)
+    throws Exception
+  {
+    WeatherXmlIndex index = WeatherXmlIndex.load(input);
+    if (null == index.getFirstDate())
+      throw new IOException("No weather reports in " + input);
+    long start = dateFormat.parseMillis(index.getFirstDate());
+    long end = dateFormat.parseMillis(index.getLastDate());
+    int hours = (int) ((end - start) / 3600000l) + 1;
+
+    double[][] reports = new double[hours][];
+    List<List<double[]>> forecasts = new ArrayList<List<double[]>>();
+    for (int hour = 0; hour < hours; hour++) {
+      String date = dateFormat.print(start + hour * 3600000l);
+      reports[hour] = index.getReport(date);
+      forecasts.add(sortById(index.getForecast(date)));
+    }
+    writeStore(output, start, reports, forecasts);
+  }
+
+  /**
+   * Converts a state log.
+   */
+  public static void convertState (String input, String output)
+    throws IOException
+  {
+    long start = -1l;
+    TreeMap<Integer, double[]> reports = new TreeMap<Integer, double[]>();
+    List<double[]> predictions = new ArrayList<double[]>();
+    int horizon = 0;
+
+    BufferedReader br = new BufferedReader(new FileReader(input));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (start < 0 && line.contains("withSimulationBaseTime")) {
+          start = Long.parseLong(line.substring(line.lastIndexOf("::") + 2));
+          continue;
+        }
+        if (!line.contains(REPORT) && !line.contains(PREDICTION)) {
+          continue;
+        }
+        String[] temp = line.split("::");
+        int stamp = Integer.parseInt(temp[3]);
+        double[] values = new double[] {stamp,
+          Double.parseDouble(temp[4]), Double.parseDouble(temp[5]),
+          Double.parseDouble(temp[6]), Double.parseDouble(temp[7])};
+        if (line.contains(REPORT)) {
+          reports.put(stamp, Arrays.copyOfRange(values, 1, values.length));
+        }
+        else if (!reports.isEmpty()) {
+          predictions.add(values);
+          horizon = Math.max(horizon, stamp);
+        }
+      }
+    }
+    finally {
+      br.close();
+    }
+    if (start < 0 || reports.isEmpty() || horizon == 0)
+      throw new IOException("No base time or weather in " + input);
+
+    int first = reports.firstKey();
+    int hours = reports.lastKey() + 1;
+    double[][] reportRows = new double[hours][];
+    List<List<double[]>> forecasts = new ArrayList<List<double[]>>();
+    for (int hour = 0; hour < hours; hour++) {
+      reportRows[hour] = reports.get(hour);
+      int from = (hour - first) * horizon;
+      if (from < 0 || from + horizon > predictions.size())
+        forecasts.add(new ArrayList<double[]>());
+      else
+        forecasts.add(predictions.subList(from, from + horizon));
+    }
+    writeStore(output, start, reportRows, forecasts);
+  }
+
+  // Returns the predictions of a forecast in id order
+  private static List<double[]> sortById (List<double[]> forecast)
+  {
+    List<double[]> result = new ArrayList<double[]>(forecast);
+    Collections.sort(result, new Comparator<double[]>() {
+      @Override
+      public int compare (double[] p1, double[] p2)
+      {
+        return Double.compare(p1[0], p2[0]);
+      }
+    });
+    return result;
+  }
+
+  // Writes the store, taking the forecast horizon from the longest
+  // forecast. Each prediction is {id, temp, windspeed, winddir, cloudcover},
+  // and the predictions of a forecast must have ids 1..horizon in order.
+  private static void writeStore (String output, long start,
+                                  double[][] reports,
+                                  List<List<double[]>> forecasts)
+    throws IOException
+  {
+    int horizon = 0;
+    for (List<double[]> forecast : forecasts) {
+      horizon = Math.max(horizon, forecast.size());
+    }
+    double[][] forecastRows = new double[forecasts.size()][];
+    for (int hour = 0; hour < forecasts.size(); hour++) {
+      List<double[]> forecast = forecasts.get(hour);
+      if (forecast.size() < horizon)
+        continue;
+      double[] row = new double[horizon * WeatherStore.VALUES];
+      for (int i = 0; i < horizon; i++) {
+        double[] prediction = forecast.get(i);
+        if ((int) prediction[0] != i + 1)
+          throw new IOException("Forecast for hour " + hour + " has prediction "
+                                + (int) prediction[0] + " in place of "
+                                + (i + 1));
+        System.arraycopy(prediction, 1, row,
+                         i * WeatherStore.VALUES, WeatherStore.VALUES);
+      }
+      forecastRows[hour] = row;
+    }
+    WeatherStore.write(output, start, reports, forecastRows, horizon);
+  }
+}
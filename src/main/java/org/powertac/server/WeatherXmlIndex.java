@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2026 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.server;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory index of a weather XML file, built in a single streaming
+ * pass. The file has the form
+ * <pre>
+ * &lt;data&gt;
+ *   &lt;weatherReports&gt;
+ *     &lt;weatherReport date="2010-04-01 00:00" temp=... /&gt; ...
+ *   &lt;/weatherReports&gt;
+ *   &lt;weatherForecasts&gt;
+ *     &lt;weatherForecast origin="2010-04-01 00:00" id="1" temp=... /&gt; ...
+ *   &lt;/weatherForecasts&gt;
+ * &lt;/data&gt;
+ * </pre>
+ * Reports are kept in date order, keyed by their date string, which sorts
+ * chronologically. Forecast predictions are grouped by origin, in file
+ * order. Values are held as arrays: {temp, windspeed, winddir, cloudcover}
+ * for reports, and {id, temp, windspeed, winddir, cloudcover} for
+ * predictions. Once built, the index is read-only and may be shared.
+ */
+public class WeatherXmlIndex
+{
+  static private Logger log = Logger.getLogger(WeatherXmlIndex.class);
+
+  private TreeMap<String, double[]> reports = new TreeMap<String, double[]>();
+  private Map<String, List<double[]>> forecasts =
+      new HashMap<String, List<double[]>>();
+  private int predictionCount = 0;
+
+  /**
+   * Builds the index from the named file.
+   */
+  public static WeatherXmlIndex load (String fileName)
+    throws IOException, XMLStreamException
+  {
+    long start = System.currentTimeMillis();
+    InputStream input = new BufferedInputStream(new FileInputStream(fileName));
+    try {
+      WeatherXmlIndex index = new WeatherXmlIndex();
+      index.read(input);
+      log.info("Indexed " + fileName + ": " + index.reports.size()
+               + " reports, " + index.predictionCount + " predictions in "
+               + (System.currentTimeMillis() - start) + " msec");
+      return index;
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Adds the contents of the stream to the index. The stream is not closed.
+   */
+  public void read (InputStream input) throws XMLStreamException
+  {
+    XMLStreamReader reader =
+        XMLInputFactory.newInstance().createXMLStreamReader(input);
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT)
+          continue;
+        String name = reader.getLocalName();
+        if ("weatherReport".equals(name)) {
+          reports.put(reader.getAttributeValue(null, "date"),
+                      new double[] {
+                        value(reader, "temp"), value(reader, "windspeed"),
+                        value(reader, "winddir"), value(reader, "cloudcover")});
+        }
+        else if ("weatherForecast".equals(name)) {
+          String origin = reader.getAttributeValue(null, "origin");
+          List<double[]> predictions = forecasts.get(origin);
+          if (null == predictions) {
+            predictions = new ArrayList<double[]>();
+            forecasts.put(origin, predictions);
+          }
+          predictions.add(new double[] {
+            value(reader, "id"),
+            value(reader, "temp"), value(reader, "windspeed"),
+            value(reader, "winddir"), value(reader, "cloudcover")});
+          predictionCount += 1;
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns up to count reports in date order, starting with the first
+   * report at or after startDate.
+   */
+  public List<double[]> getReports (String startDate, int count)
+  {
+    List<double[]> result = new ArrayList<double[]>(count);
+    for (double[] report : reports.tailMap(startDate, true).values()) {
+      if (result.size() == count)
+        break;
+      result.add(report);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the report values for the given date, or null if there is
+   * no such report.
+   */
+  public double[] getReport (String date)
+  {
+    return reports.get(date);
+  }
+
+  /**
+   * Returns the date of the earliest report, or null if there are none.
+   */
+  public String getFirstDate ()
+  {
+    return reports.isEmpty() ? null : reports.firstKey();
+  }
+
+  /**
+   * Returns the date of the latest report, or null if there are none.
+   */
+  public String getLastDate ()
+  {
+    return reports.isEmpty() ? null : reports.lastKey();
+  }
+
+  /**
+   * Returns the predictions of the forecast made at origin, in file order.
+   * The list is empty if there is no such forecast.
+   */
+  public List<double[]> getForecast (String origin)
+  {
+    List<double[]> result = forecasts.get(origin);
+    if (null == result)
+      return new ArrayList<double[]>();
+    return result;
+  }
+
+  /**
+   * Returns the number of reports in the index.
+   */
+  public int getReportCount ()
+  {
+    return reports.size();
+  }
+
+  /**
+   * Returns the number of forecast predictions in the index.
+   */
+  public int getPredictionCount ()
+  {
+    return predictionCount;
+  }
+
+  private double value (XMLStreamReader reader, String attribute)
+  {
+    return Double.parseDouble(reader.getAttributeValue(null, attribute));
+  }
+}
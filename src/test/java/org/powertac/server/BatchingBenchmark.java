@@ -0,0 +1,174 @@
+package org.powertac.server;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.pool.PooledConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powertac.common.Broker;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.interfaces.VisualizerProxy;
+import org.powertac.common.repo.BrokerRepo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Delivery rate of broadcasts to remote brokers through the embedded
+ * ActiveMQ provider started by JmsManagementService.startProvider(),
+ * with and without per-phase batching. Each broker queue has a consumer
+ * that counts the messages it receives, unpacking batches, and a round
+ * ends when every message has arrived. Run with
+ * <pre>  mvn test -Dtest=BatchingBenchmark</pre>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:cc-config.xml"})
+@DirtiesContext
+public class BatchingBenchmark
+{
+  private static final String URL = "tcp://localhost:61618";
+
+  @Autowired
+  private XMLMessageConverter converter;
+
+  private JmsManagementService jms;
+  private PooledConnectionFactory pool;
+  private Connection connection;
+  private BrokerProxyService brokerProxy;
+  private List<Broker> brokers = new ArrayList<Broker>();
+  private List<Object> phase = new ArrayList<Object>();
+  private AtomicLong received = new AtomicLong(0);
+
+  // phases per round, each with a batch flush
+  private int phases = 20;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    jms = new JmsManagementService();
+    jms.setJmsBrokerName("benchmark");
+    jms.setJmsBrokerUrl(URL);
+    jms.startProvider();
+    ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(URL);
+    pool = new PooledConnectionFactory();
+    pool.setConnectionFactory(factory);
+
+    BrokerRepo brokerRepo = mock(BrokerRepo.class);
+    connection = factory.createConnection();
+    Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    for (int i = 0; i < 10; i++) {
+      Broker broker = new Broker("remote" + i);
+      broker.setEnabled(true);
+      brokers.add(broker);
+      MessageConsumer consumer =
+          session.createConsumer(session.createQueue(broker.toQueueName()));
+      consumer.setMessageListener(new MessageListener() {
+        @Override
+        public void onMessage (Message message)
+        {
+          received.addAndGet(count(message));
+        }
+      });
+    }
+    connection.start();
+    when(brokerRepo.list()).thenReturn(brokers);
+
+    brokerProxy = new BrokerProxyService();
+    ReflectionTestUtils.setField(brokerProxy, "template", new JmsTemplate(pool));
+    ReflectionTestUtils.setField(brokerProxy, "converter", converter);
+    ReflectionTestUtils.setField(brokerProxy, "brokerRepo", brokerRepo);
+    ReflectionTestUtils.setField(brokerProxy, "visualizerProxyService",
+                                 mock(VisualizerProxy.class));
+    for (int i = 0; i < 50; i++) {
+      phase.add(new CustomerInfo("customer" + i, 100 + i));
+    }
+  }
+
+  @After
+  public void tearDown () throws Exception
+  {
+    connection.close();
+    pool.stop();
+    jms.stopProvider();
+  }
+
+  // the number of messages in a received message, which may be a batch
+  private long count (Message message)
+  {
+    try {
+      String text = ((TextMessage) message).getText();
+      if (!text.startsWith("<" + MessageBatch.ELEMENT))
+        return 1;
+      int start = text.indexOf("count=\"") + "count=\"".length();
+      return Long.parseLong(text.substring(start, text.indexOf('"', start)));
+    }
+    catch (JMSException e) {
+      return 0;
+    }
+  }
+
+  private Runnable round (final boolean batch)
+  {
+    return new Runnable() {
+      @Override
+      public void run ()
+      {
+        ReflectionTestUtils.setField(brokerProxy, "batchMessages", batch);
+        long expected =
+            received.get() + (long) phases * phase.size() * brokers.size();
+        brokerProxy.startBatch();
+        for (int i = 0; i < phases; i++) {
+          for (Object message : phase) {
+            brokerProxy.broadcastMessage(message);
+          }
+          brokerProxy.flushBatch();
+        }
+        brokerProxy.closeBatch();
+        while (received.get() < expected) {
+          try {
+            Thread.sleep(1);
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    };
+  }
+
+  @Test
+  public void batching ()
+  {
+    BenchmarkTimer timer = new BenchmarkTimer(3, 5);
+    int messages = phases * phase.size() * brokers.size();
+    BenchmarkTimer.Result single =
+        timer.measure("one JMS message per message", messages, round(false));
+    BenchmarkTimer.Result batched =
+        timer.measure("one JMS message per phase", messages, round(true));
+    System.out.println(String.format("%d brokers, %d messages per phase: "
+                                     + "%.0f msg/sec unbatched, "
+                                     + "%.0f msg/sec batched",
+                                     brokers.size(), phase.size(),
+                                     1e6 / single.wallMicros,
+                                     1e6 / batched.wallMicros));
+  }
+}
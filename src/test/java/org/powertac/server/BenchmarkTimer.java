@@ -0,0 +1,86 @@
+package org.powertac.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Timing loop for the benchmarks in this package. The benchmarks are
+ * named *Benchmark, so they are not part of the normal test run; each is
+ * run on demand, for example
+ * <pre>  mvn test -Dtest=BroadcastBenchmark</pre>
+ * A task is run for some warm-up rounds, so the JIT has compiled it, and
+ * then for the measured rounds. The median round is reported, in
+ * microseconds of wall time and of the calling thread's CPU time per
+ * operation.
+ */
+class BenchmarkTimer
+{
+  private int warmupRounds = 5;
+  private int rounds = 10;
+
+  BenchmarkTimer ()
+  {
+    super();
+  }
+
+  BenchmarkTimer (int warmupRounds, int rounds)
+  {
+    super();
+    this.warmupRounds = warmupRounds;
+    this.rounds = rounds;
+  }
+
+  /**
+   * Runs task, which performs ops operations per call, and prints and
+   * returns the median time per operation.
+   */
+  Result measure (String label, int ops, Runnable task)
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    for (int i = 0; i < warmupRounds; i++) {
+      task.run();
+    }
+    double[] wall = new double[rounds];
+    double[] cpu = new double[rounds];
+    for (int i = 0; i < rounds; i++) {
+      long cpuStart = threads.getCurrentThreadCpuTime();
+      long start = System.nanoTime();
+      task.run();
+      wall[i] = (System.nanoTime() - start) / 1000.0 / ops;
+      cpu[i] = (threads.getCurrentThreadCpuTime() - cpuStart) / 1000.0 / ops;
+    }
+    Result result = new Result(label, median(wall), median(cpu));
+    System.out.println(result);
+    return result;
+  }
+
+  private double median (double[] values)
+  {
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  static class Result
+  {
+    String label;
+    double wallMicros;
+    double cpuMicros;
+
+    Result (String label, double wallMicros, double cpuMicros)
+    {
+      super();
+      this.label = label;
+      this.wallMicros = wallMicros;
+      this.cpuMicros = cpuMicros;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return String.format("%-40s %10.2f us/op wall %10.2f us/op cpu",
+                           label, wallMicros, cpuMicros);
+    }
+  }
+}
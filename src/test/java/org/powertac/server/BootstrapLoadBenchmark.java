@@ -0,0 +1,233 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Load time and allocation of reading a 336-timeslot bootstrap dataset
+ * with BootstrapDataReader, against the three XPath passes, each with its
+ * own DOM, and the per-node Transformer that CompetitionSetupService used
+ * before. Both produce the same XML strings for the converter, so
+ * decoding is not timed. The dataset has the shape saveBootstrapData()
+ * writes: 50 customers with 336 hours of usage, market data, and an
+ * hourly weather report. Run with
+ * <pre>  mvn test -Dtest=BootstrapLoadBenchmark</pre>
+ */
+public class BootstrapLoadBenchmark
+{
+  private File dataset;
+  private int timeslots = 336;
+
+  @Before
+  public void setUp () throws IOException
+  {
+    dataset = File.createTempFile("boot", ".xml");
+    BufferedWriter out = new BufferedWriter(new FileWriter(dataset));
+    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    out.newLine();
+    out.write("<powertac-bootstrap-data>");
+    out.newLine();
+    out.write("<config>");
+    out.newLine();
+    out.write("<competition id=\"0\" name=\"game-0\" timeslotLength=\"60\""
+              + " minimumTimeslotCount=\"1320\" bootstrapTimeslotCount=\""
+              + timeslots + "\" timeslotsOpen=\"24\" deactivateTimeslotsAhead=\"1\""
+              + " simulationBaseTime=\"1270080000000\" simulationRate=\"720\">"
+              + "<description></description><brokers/>"
+              + "<customers></customers></competition>");
+    out.newLine();
+    out.write("</config>");
+    out.newLine();
+    out.write("<bootstrap-state>");
+    out.newLine();
+    out.write("<properties>");
+    for (int i = 0; i < 20; i++) {
+      out.write("<property name=\"genco.plant" + i + ".seed\" value=\""
+                + (1000 + i) + "\"/>");
+    }
+    out.write("</properties>");
+    out.newLine();
+    out.write("</bootstrap-state>");
+    out.newLine();
+    out.write("<bootstrap>");
+    out.newLine();
+    for (int c = 0; c < 50; c++) {
+      out.write("<customer-bootstrap-data id=\"" + (200000000 + c)
+                + "\" customerName=\"customer" + c
+                + "\" powerType=\"CONSUMPTION\"><netUsage>"
+                + series(timeslots, c) + "</netUsage></customer-bootstrap-data>");
+      out.newLine();
+    }
+    out.write("<market-bootstrap-data id=\"200000100\"><mwh>"
+              + series(timeslots, 1) + "</mwh><marketPrice>"
+              + series(timeslots, 2) + "</marketPrice></market-bootstrap-data>");
+    out.newLine();
+    for (int t = 0; t < timeslots; t++) {
+      out.write("<weather-report id=\"" + (200000200 + t)
+                + "\" currentTimeslot=\"" + t + "\" temperature=\""
+                + (10.0 + t % 24 / 2.0) + "\" windSpeed=\"4.0\""
+                + " windDirection=\"250.0\" cloudCover=\"0.5\"/>");
+      out.newLine();
+    }
+    out.write("</bootstrap>");
+    out.newLine();
+    out.write("</powertac-bootstrap-data>");
+    out.newLine();
+    out.close();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    dataset.delete();
+  }
+
+  // a comma-separated series of n values
+  private String series (int n, int seed)
+  {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      if (i > 0)
+        result.append(',');
+      result.append(-(seed + 1) * (1.0 + Math.sin(i * Math.PI / 12.0)) / 3.0);
+    }
+    return result.toString();
+  }
+
+  // the strings the old code handed to the converter
+  private List<String> loadWithXPath () throws Exception
+  {
+    List<String> result = new ArrayList<String>();
+    XPath xPath = XPathFactory.newInstance().newXPath();
+    String[] paths = {"/powertac-bootstrap-data/config/competition",
+                      "/powertac-bootstrap-data/bootstrap-state/properties",
+                      "/powertac-bootstrap-data/bootstrap/*"};
+    for (String path : paths) {
+      XPathExpression exp = xPath.compile(path);
+      InputStream input = new FileInputStream(dataset);
+      try {
+        NodeList nodes = (NodeList) exp.evaluate(new InputSource(input),
+                                                 XPathConstants.NODESET);
+        for (int i = 0; i < nodes.getLength(); i++) {
+          result.add(nodeToString(nodes.item(i)));
+        }
+      }
+      finally {
+        input.close();
+      }
+    }
+    return result;
+  }
+
+  private String nodeToString (Node node) throws Exception
+  {
+    StringWriter sw = new StringWriter();
+    Transformer t = TransformerFactory.newInstance().newTransformer();
+    t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    t.setOutputProperty(OutputKeys.INDENT, "no");
+    t.transform(new DOMSource(node), new StreamResult(sw));
+    return sw.toString();
+  }
+
+  private BootstrapDataReader loadWithReader () throws Exception
+  {
+    BootstrapDataReader reader = new BootstrapDataReader();
+    InputStream input = new FileInputStream(dataset);
+    try {
+      reader.read(input);
+    }
+    finally {
+      input.close();
+    }
+    return reader;
+  }
+
+  // bytes allocated by the current thread, where the JVM reports it
+  private long allocated ()
+  {
+    java.lang.management.ThreadMXBean threads =
+        ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  private Runnable load (final boolean xpath)
+  {
+    return new Runnable() {
+      @Override
+      public void run ()
+      {
+        try {
+          if (xpath)
+            loadWithXPath();
+          else
+            loadWithReader();
+        }
+        catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+  }
+
+  private double allocatedMegabytes (Runnable task)
+  {
+    long start = allocated();
+    task.run();
+    return (allocated() - start) / 1048576.0;
+  }
+
+  @Test
+  public void load () throws Exception
+  {
+    BootstrapDataReader reader = loadWithReader();
+    List<String> old = loadWithXPath();
+    int items = reader.getItemXml().size();
+    assertEquals("same item count", old.size() - 2, items);
+
+    BenchmarkTimer timer = new BenchmarkTimer(3, 7);
+    BenchmarkTimer.Result before =
+        timer.measure("three XPath passes, per dataset", 1, load(true));
+    BenchmarkTimer.Result after =
+        timer.measure("BootstrapDataReader, per dataset", 1, load(false));
+    System.out.println(String.format("%d kB, %d items: %.1fx less wall time, "
+                                     + "%.1fx less cpu, "
+                                     + "%.1f MB allocated before, "
+                                     + "%.1f MB after",
+                                     dataset.length() / 1024, items,
+                                     before.wallMicros / after.wallMicros,
+                                     before.cpuMicros / after.cpuMicros,
+                                     allocatedMegabytes(load(true)),
+                                     allocatedMegabytes(load(false))));
+  }
+}
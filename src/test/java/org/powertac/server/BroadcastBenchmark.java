@@ -0,0 +1,130 @@
+package org.powertac.server;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powertac.common.Broker;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.WeatherForecast;
+import org.powertac.common.WeatherForecastPrediction;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.interfaces.VisualizerProxy;
+import org.powertac.common.msg.TimeslotComplete;
+import org.powertac.common.repo.BrokerRepo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.core.MessageCreator;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Serialization cost of broadcasting one timeslot's messages to remote
+ * brokers, sending them one broker at a time, as broadcastMessage used
+ * to, against a single broadcast that serializes each message once.
+ * Sends are discarded, so only the server's own work is timed. Run with
+ * <pre>  mvn test -Dtest=BroadcastBenchmark</pre>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:cc-config.xml"})
+@DirtiesContext
+public class BroadcastBenchmark
+{
+  @Autowired
+  private XMLMessageConverter converter;
+
+  private BrokerProxyService brokerProxy;
+  private VisualizerProxy visualizer;
+  private List<Broker> brokers = new ArrayList<Broker>();
+  private List<Object> timeslot = new ArrayList<Object>();
+  private int timeslots = 50;
+
+  // discards everything sent
+  private static class NullTemplate extends JmsTemplate
+  {
+    @Override
+    public void send (String destinationName, MessageCreator messageCreator)
+    {
+    }
+  }
+
+  @Before
+  public void setUp ()
+  {
+    brokerProxy = new BrokerProxyService();
+    visualizer = mock(VisualizerProxy.class);
+    BrokerRepo brokerRepo = mock(BrokerRepo.class);
+    for (int i = 0; i < 10; i++) {
+      Broker broker = new Broker("remote" + i);
+      broker.setEnabled(true);
+      brokers.add(broker);
+    }
+    when(brokerRepo.list()).thenReturn(brokers);
+    ReflectionTestUtils.setField(brokerProxy, "template", new NullTemplate());
+    ReflectionTestUtils.setField(brokerProxy, "converter", converter);
+    ReflectionTestUtils.setField(brokerProxy, "brokerRepo", brokerRepo);
+    ReflectionTestUtils.setField(brokerProxy, "visualizerProxyService",
+                                 visualizer);
+
+    // a weather report and forecast, a message per market timeslot, and
+    // the end of the timeslot
+    timeslot.add(new WeatherReport(1, 10.5, 4.0, 250.0, 0.5));
+    List<WeatherForecastPrediction> predictions =
+        new ArrayList<WeatherForecastPrediction>();
+    for (int i = 1; i <= 24; i++) {
+      predictions.add(new WeatherForecastPrediction(i, 10.0 + i, 4.0,
+                                                    250.0, 0.5));
+    }
+    timeslot.add(new WeatherForecast(1, predictions));
+    for (int i = 0; i < 24; i++) {
+      timeslot.add(new CustomerInfo("customer" + i, 100 + i));
+    }
+    timeslot.add(new TimeslotComplete(1));
+  }
+
+  @Test
+  public void broadcast ()
+  {
+    BenchmarkTimer timer = new BenchmarkTimer();
+    BenchmarkTimer.Result before =
+        timer.measure("per-broker serialization, per timeslot", timeslots,
+                      new Runnable() {
+      @Override
+      public void run ()
+      {
+        for (int i = 0; i < timeslots; i++) {
+          for (Object message : timeslot) {
+            for (Broker broker : brokers) {
+              brokerProxy.sendMessage(broker, message);
+            }
+          }
+        }
+        reset(visualizer);
+      }
+    });
+    BenchmarkTimer.Result after =
+        timer.measure("serialize once, per timeslot", timeslots,
+                      new Runnable() {
+      @Override
+      public void run ()
+      {
+        for (int i = 0; i < timeslots; i++) {
+          for (Object message : timeslot) {
+            brokerProxy.broadcastMessage(message);
+          }
+        }
+        reset(visualizer);
+      }
+    });
+    System.out.println(String.format("%d brokers: %.1fx less cpu per timeslot",
+                                     brokers.size(),
+                                     before.cpuMicros / after.cpuMicros));
+  }
+}
@@ -1,6 +1,7 @@
 package org.powertac.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -13,11 +14,16 @@ import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powertac.common.Broker;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.XMLMessageConverter;
 import org.powertac.common.interfaces.BrokerProxy;
 import org.powertac.common.interfaces.VisualizerProxy;
+import org.powertac.common.msg.SimPause;
+import org.powertac.common.msg.TimeslotComplete;
+import org.powertac.common.repo.BrokerRepo;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.jms.core.MessageCreator;
 import org.springframework.test.util.ReflectionTestUtils;
@@ -36,6 +42,7 @@ public class BrokerProxyServiceTest
   private VisualizerProxy visualizer;
   private JmsTemplate template;
   private XMLMessageConverter converter;
+  private BrokerRepo brokerRepo;
 
   @Before
   public void setUp() throws Exception 
@@ -55,6 +62,8 @@ public class BrokerProxyServiceTest
     ReflectionTestUtils.setField(brokerProxy, "visualizerProxyService", visualizer);    
     converter = mock(XMLMessageConverter.class);
     ReflectionTestUtils.setField(brokerProxy, "converter", converter);     
+    brokerRepo = mock(BrokerRepo.class);
+    ReflectionTestUtils.setField(brokerProxy, "brokerRepo", brokerRepo);
   }
 
   @After
@@ -113,6 +122,200 @@ public class BrokerProxyServiceTest
                                                      any(MessageCreator.class));
   }
   
+  @Test
+  public void broadcastSerializesOnce ()
+  {
+    List<Broker> brokers = new ArrayList<Broker>();
+    for (int i = 0; i < 10; i++) {
+      TestBroker broker = new TestBroker("remote" + i, false, false);
+      broker.setEnabled(true);
+      brokers.add(broker);
+    }
+    brokers.add(stdBroker); // not enabled
+    localBroker.setEnabled(true);
+    brokers.add(localBroker);
+    when(brokerRepo.list()).thenReturn(brokers);
+    when(converter.toXML(message)).thenReturn("<customer-info/>");
+
+    brokerProxy.broadcastMessage(message);
+    verify(converter, times(1)).toXML(message);
+    verify(template, times(10)).send(any(String.class),
+                                     any(MessageCreator.class));
+    verify(visualizer, times(1)).forwardMessage(message);
+    assertEquals("local broker gets the object", 1,
+                 localBroker.messages.size());
+  }
+
+  @Test
+  public void broadcastLocalOnlyNoSerialization ()
+  {
+    List<Broker> brokers = new ArrayList<Broker>();
+    localBroker.setEnabled(true);
+    brokers.add(localBroker);
+    brokers.add(stdBroker); // remote, but not enabled
+    when(brokerRepo.list()).thenReturn(brokers);
+
+    brokerProxy.broadcastMessage(message);
+    verify(converter, times(0)).toXML(any());
+    verify(template, times(0)).send(any(String.class),
+                                    any(MessageCreator.class));
+    assertEquals("local broker gets the object", 1,
+                 localBroker.messages.size());
+  }
+
+  @Test
+  public void asyncSendFlushedAtTimeslotComplete ()
+  {
+    ReflectionTestUtils.setField(brokerProxy, "asyncSend", true);
+    ReflectionTestUtils.setField(brokerProxy, "jmsManagementService",
+                                 mock(JmsManagementService.class));
+    List<Broker> brokers = new ArrayList<Broker>();
+    stdBroker.setEnabled(true);
+    brokers.add(stdBroker);
+    when(brokerRepo.list()).thenReturn(brokers);
+
+    List<Object> messageList = new ArrayList<Object>();
+    messageList.add(message);
+    messageList.add(new CustomerInfo("t2", 22));
+    messageList.add(new CustomerInfo("t3", 23));
+    brokerProxy.sendMessages(stdBroker, messageList);
+    brokerProxy.broadcastMessage(new TimeslotComplete(1));
+    // all four messages must be out before broadcastMessage returns
+    verify(template, times(4)).send(any(String.class),
+                                    any(MessageCreator.class));
+    ((BrokerProxyService)brokerProxy).setDefaults();
+  }
+
+  @Test
+  public void asyncFlushSharesOneDeadline ()
+  {
+    ReflectionTestUtils.setField(brokerProxy, "asyncSend", true);
+    ReflectionTestUtils.setField(brokerProxy, "flushTimeout", 300);
+    ReflectionTestUtils.setField(brokerProxy, "jmsManagementService",
+                                 mock(JmsManagementService.class));
+    // every send hangs, as it would for stalled brokers
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer (InvocationOnMock invocation)
+      {
+        try {
+          Thread.sleep(5000);
+        }
+        catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+        return null;
+      }
+    }).when(template).send(any(String.class), any(MessageCreator.class));
+    List<Broker> brokers = new ArrayList<Broker>();
+    for (int i = 0; i < 4; i++) {
+      TestBroker broker = new TestBroker("remote" + i, false, false);
+      broker.setEnabled(true);
+      brokers.add(broker);
+    }
+    when(brokerRepo.list()).thenReturn(brokers);
+    when(converter.toXML(any())).thenReturn("<message/>");
+
+    long start = System.currentTimeMillis();
+    brokerProxy.broadcastMessage(new TimeslotComplete(1));
+    long elapsed = System.currentTimeMillis() - start;
+    // one timeout for all four outboxes, not one each
+    assertTrue("flush took " + elapsed + " msec", elapsed < 900);
+    ((BrokerProxyService)brokerProxy).setDefaults();
+  }
+
+  @Test
+  public void batchedByPhase ()
+  {
+    BrokerProxyService service = (BrokerProxyService)brokerProxy;
+    ReflectionTestUtils.setField(service, "batchMessages", true);
+    List<Broker> brokers = new ArrayList<Broker>();
+    stdBroker.setEnabled(true);
+    brokers.add(stdBroker);
+    when(brokerRepo.list()).thenReturn(brokers);
+
+    service.startBatch();
+    brokerProxy.sendMessage(stdBroker, message);
+    brokerProxy.sendMessage(stdBroker, new CustomerInfo("t2", 22));
+    verify(template, times(0)).send(any(String.class),
+                                    any(MessageCreator.class));
+    service.flushBatch();
+    verify(template, times(1)).send(any(String.class),
+                                    any(MessageCreator.class));
+    brokerProxy.sendMessage(stdBroker, new CustomerInfo("t3", 23));
+    brokerProxy.broadcastMessage(new TimeslotComplete(1));
+    verify(template, times(2)).send(any(String.class),
+                                    any(MessageCreator.class));
+    // batch is closed now
+    brokerProxy.sendMessage(stdBroker, message);
+    verify(template, times(3)).send(any(String.class),
+                                    any(MessageCreator.class));
+  }
+
+  @Test
+  public void controlMessagesNotBatched ()
+  {
+    BrokerProxyService service = (BrokerProxyService)brokerProxy;
+    ReflectionTestUtils.setField(service, "batchMessages", true);
+    List<Broker> brokers = new ArrayList<Broker>();
+    stdBroker.setEnabled(true);
+    brokers.add(stdBroker);
+    when(brokerRepo.list()).thenReturn(brokers);
+
+    service.startBatch();
+    brokerProxy.sendMessage(stdBroker, message);
+    verify(template, times(0)).send(any(String.class),
+                                    any(MessageCreator.class));
+    // a pause goes out at once, even with a batch open
+    brokerProxy.broadcastMessage(new SimPause());
+    verify(template, times(1)).send(any(String.class),
+                                    any(MessageCreator.class));
+    // closing the batch sends what it holds, and later messages go out
+    service.closeBatch();
+    verify(template, times(2)).send(any(String.class),
+                                    any(MessageCreator.class));
+    brokerProxy.sendMessage(stdBroker, new CustomerInfo("t2", 22));
+    verify(template, times(3)).send(any(String.class),
+                                    any(MessageCreator.class));
+  }
+
+  @Test
+  public void compositeBroadcast ()
+  {
+    ReflectionTestUtils.setField(brokerProxy, "broadcastTransport",
+                                 "composite");
+    List<Broker> brokers = new ArrayList<Broker>();
+    String destination = "";
+    for (int i = 0; i < 3; i++) {
+      TestBroker broker = new TestBroker("remote" + i, false, false);
+      broker.setEnabled(true);
+      brokers.add(broker);
+      destination += ((i == 0) ? "" : ",") + broker.toQueueName();
+    }
+    brokers.add(stdBroker); // not enabled
+    localBroker.setEnabled(true);
+    brokers.add(localBroker);
+    when(brokerRepo.list()).thenReturn(brokers);
+
+    brokerProxy.broadcastMessage(message);
+    verify(template, times(1)).send(eq(destination),
+                                    any(MessageCreator.class));
+    assertEquals("local broker gets the object", 1,
+                 localBroker.messages.size());
+  }
+
+  @Test
+  public void batchEnvelope ()
+  {
+    MessageBatch batch = new MessageBatch("q");
+    batch.add("<a/>");
+    assertEquals("single message not wrapped", "<a/>", batch.toXml());
+    batch.add("<b/>");
+    assertEquals("two messages wrapped",
+                 "<message-batch count=\"2\">\n<a/>\n<b/>\n</message-batch>",
+                 batch.toXml());
+  }
+
   @Test
   public void routeMessageTest()
   {
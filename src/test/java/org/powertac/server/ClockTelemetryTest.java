@@ -0,0 +1,87 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClockTelemetryTest
+{
+  private File file;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    file = File.createTempFile("clock", ".csv");
+  }
+
+  @After
+  public void tearDown ()
+  {
+    file.delete();
+  }
+
+  private List<String> readLines () throws Exception
+  {
+    List<String> result = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    String line;
+    while (null != (line = in.readLine()))
+      result.add(line);
+    in.close();
+    return result;
+  }
+
+  // records n ticks, each due at 100 * i, late by 1 msec, taking i msec
+  private void ticks (ClockTelemetry telemetry, int n)
+  {
+    for (int i = 0; i < n; i++) {
+      telemetry.tick(100 * i, 100 * i + 1);
+      telemetry.complete(100 * i + 1 + i);
+    }
+  }
+
+  @Test
+  public void bounded () throws Exception
+  {
+    ClockTelemetry telemetry = new ClockTelemetry(10);
+    ticks(telemetry, 100);
+    assertEquals("all ticks counted", 100, telemetry.size());
+    assertEquals("mean of last 5 steps", 97, telemetry.recentStepMillis(5));
+    assertEquals("only retained steps", 94, telemetry.recentStepMillis(50));
+    assertTrue(telemetry.summary(),
+               telemetry.summary().startsWith("ticks=100 delayed=0 maxLate=1 "
+                                              + "meanStep=49 maxStep=99 "));
+    telemetry.writeCsv(file.getPath());
+    List<String> lines = readLines();
+    assertEquals("header and retained records", 11, lines.size());
+    assertTrue(lines.get(1), lines.get(1).startsWith("90,9000,9001,1,90,"));
+  }
+
+  @Test
+  public void streamed () throws Exception
+  {
+    ClockTelemetry telemetry = new ClockTelemetry(10);
+    telemetry.open(file.getPath());
+    ticks(telemetry, 100);
+    // the current record is only written when it is final
+    telemetry.pauseStarted(10000);
+    telemetry.pauseEnded(10025);
+    telemetry.close();
+    List<String> lines = readLines();
+    assertEquals("header", ClockTelemetry.CSV_HEADER, lines.get(0));
+    assertEquals("header and all records", 101, lines.size());
+    assertEquals("first", "0,0,1,1,0,0,0,0", lines.get(1));
+    assertEquals("last", "99,9900,9901,1,99,0,25,0", lines.get(100));
+    // closing again does not write anything
+    telemetry.close();
+    assertEquals("unchanged", 101, readLines().size());
+  }
+}
@@ -3,8 +3,12 @@ package org.powertac.server;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.CharArrayReader;
 import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 
 import javax.xml.xpath.XPath;
@@ -20,11 +24,13 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.Instant;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powertac.common.CustomerInfo;
+import org.powertac.common.XMLMessageConverter;
 import org.powertac.common.enumerations.PowerType;
 import org.powertac.common.interfaces.BootstrapDataCollector;
 import org.powertac.common.msg.CustomerBootstrapData;
@@ -49,9 +55,19 @@ public class CompetitionControlServiceTests
   
   @Autowired
   private BootstrapDataCollector collector;
+
+  @Autowired
+  private XMLMessageConverter converter;
+
+  @Autowired
+  private ServerPropertiesService serverProps;
   
   private CustomerInfo customer1;
   private CustomerInfo customer2;
+
+  private static final String DECODE_THREADS =
+      "server.competitionSetupService.decodeThreads";
+  private String decodeThreads;
   
   @BeforeClass
   public static void setUpBeforeClass () throws Exception
@@ -65,6 +81,19 @@ public class CompetitionControlServiceTests
     reset(collector);
     customer1 = new CustomerInfo("Jack", 3);
     customer2 = new CustomerInfo("Jill", 7);
+    decodeThreads = serverProps.getProperty(DECODE_THREADS);
+  }
+
+  @After
+  public void tearDown ()
+  {
+    // put back what the other tests expect, the processor count when the
+    // property was not set
+    if (null == decodeThreads)
+      serverProps.setProperty(DECODE_THREADS,
+                              Runtime.getRuntime().availableProcessors());
+    else
+      serverProps.setProperty(DECODE_THREADS, decodeThreads);
   }
 
   @Test
@@ -79,6 +108,17 @@ public class CompetitionControlServiceTests
     //fail("Not yet implemented");
   }
 
+  // has the collector return bootstrap data for two customers
+  private void collectTwoCustomers ()
+  {
+    ArrayList<Object> data = new ArrayList<Object>();
+    double[] usage1 = new double[] {3.1,3.2,3.3,3.4};
+    data.add(new CustomerBootstrapData(customer1, PowerType.CONSUMPTION, usage1));
+    double[] usage2 = new double[] {7.2,7.3,7.4,7.5};
+    data.add(new CustomerBootstrapData(customer2, PowerType.CONSUMPTION, usage2));
+    when(collector.collectBootstrapData(anyInt())).thenReturn(data);
+  }
+
   @Test
   public void testRunOnceWriter ()
   {
@@ -113,6 +153,94 @@ public class CompetitionControlServiceTests
     //System.out.println(writer.toString());
   }
 
+  @Test
+  public void testBootstrapDataReader () throws Exception
+  {
+    css.preGame();
+    collectTwoCustomers();
+
+    CharArrayWriter writer = new CharArrayWriter();
+    css.saveBootstrapData(writer);
+
+    BootstrapDataReader reader = new BootstrapDataReader();
+    reader.read(new ByteArrayInputStream(writer.toString().getBytes("UTF-8")));
+    assertNotNull("found competition", reader.getCompetitionXml());
+    assertTrue("competition element",
+               reader.getCompetitionXml().startsWith("<competition"));
+    assertNotNull("found bootstrap state", reader.getPropertiesXml());
+    assertEquals("two items", 2, reader.getItemXml().size());
+
+    ArrayList<Object> items = css.decodeBootItems(reader.getItemXml());
+    assertEquals("two decoded items", 2, items.size());
+    CustomerBootstrapData item = (CustomerBootstrapData)items.get(1);
+    assertEquals("second item in order", 7.3, item.getNetUsage()[1], 1e-6);
+  }
+
+  @Test
+  public void testCompressedBootstrapData () throws Exception
+  {
+    css.preGame();
+    collectTwoCustomers();
+
+    File compressed = File.createTempFile("boot", ".xml.gz");
+    File plain = File.createTempFile("boot", ".xml");
+    try {
+      css.saveBootstrapData(BootstrapDataConverter.openWriter(compressed));
+      BootstrapDataConverter.convert(compressed.getPath(), plain.getPath());
+      assertTrue("compressed is smaller", compressed.length() < plain.length());
+
+      BootstrapDataReader reader = new BootstrapDataReader();
+      InputStream input =
+          BootstrapDataConverter.openInput(new FileInputStream(compressed),
+                                           compressed.getPath());
+      reader.read(input);
+      input.close();
+      assertTrue("competition element",
+                 reader.getCompetitionXml().startsWith("<competition"));
+      assertNotNull("found bootstrap state", reader.getPropertiesXml());
+      assertEquals("two items", 2, reader.getItemXml().size());
+
+      BootstrapDataReader plainReader = new BootstrapDataReader();
+      input = new FileInputStream(plain);
+      plainReader.read(input);
+      input.close();
+      assertEquals("same items", plainReader.getItemXml(), reader.getItemXml());
+
+      ArrayList<Object> items = css.decodeBootItems(reader.getItemXml());
+      CustomerBootstrapData item = (CustomerBootstrapData)items.get(1);
+      assertEquals("second item in order", 7.3, item.getNetUsage()[1], 1e-6);
+    }
+    finally {
+      compressed.delete();
+      plain.delete();
+    }
+  }
+
+  @Test
+  public void testParallelBootDecoding ()
+  {
+    css.preGame();
+    ArrayList<String> items = new ArrayList<String>();
+    for (int i = 0; i < 200; i++) {
+      double[] usage = new double[] {i, i + 0.1, i + 0.2};
+      CustomerInfo customer = (i % 2 == 0) ? customer1 : customer2;
+      items.add(converter.toXML(new CustomerBootstrapData(customer,
+                                                          PowerType.CONSUMPTION,
+                                                          usage)));
+    }
+
+    serverProps.setProperty(DECODE_THREADS, 1);
+    ArrayList<Object> sequential = css.decodeBootItems(items);
+    serverProps.setProperty(DECODE_THREADS, 4);
+    ArrayList<Object> parallel = css.decodeBootItems(items);
+
+    assertEquals("same size", sequential.size(), parallel.size());
+    for (int i = 0; i < sequential.size(); i++) {
+      assertEquals("same item " + i, converter.toXML(sequential.get(i)),
+                   converter.toXML(parallel.get(i)));
+    }
+  }
+
   @Test
   public void testRegisterTimeslotPhase ()
   {
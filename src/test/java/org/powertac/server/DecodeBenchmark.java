@@ -0,0 +1,152 @@
+package org.powertac.server;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powertac.common.Broker;
+import org.powertac.common.IdGenerator;
+import org.powertac.common.Order;
+import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.ServerConfiguration;
+import org.powertac.common.repo.BrokerRepo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Throughput and latency of inbound message handling under a burst of
+ * orders from ten brokers, delivered by a single listener thread as JMS
+ * does, with decoding on the listener thread and on the decode pool.
+ * Latency is measured by ServerMessageReceiver itself, from arrival to
+ * the end of routing. Run with
+ * <pre>  mvn test -Dtest=DecodeBenchmark</pre>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:cc-config.xml"})
+@DirtiesContext
+public class DecodeBenchmark
+{
+  @Autowired
+  private XMLMessageConverter converter;
+
+  private ServerMessageReceiver receiver;
+  private BrokerProxy brokerProxy;
+  private List<String> burst = new ArrayList<String>();
+  private AtomicLong routed = new AtomicLong(0);
+
+  @Before
+  public void setUp ()
+  {
+    receiver = new ServerMessageReceiver();
+    brokerProxy = mock(BrokerProxy.class);
+    BrokerRepo brokerRepo = mock(BrokerRepo.class);
+    ReflectionTestUtils.setField(receiver, "brokerProxy", brokerProxy);
+    ReflectionTestUtils.setField(receiver, "converter", converter);
+    ReflectionTestUtils.setField(receiver, "brokerRepo", brokerRepo);
+    ReflectionTestUtils.setField(receiver, "serverConfig",
+                                 mock(ServerConfiguration.class));
+
+    // 50 orders from each of ten brokers, interleaved
+    List<Broker> brokers = new ArrayList<Broker>();
+    for (int i = 0; i < 10; i++) {
+      Broker broker = new Broker("broker" + i);
+      broker.setEnabled(true);
+      broker.setKey("key" + i);
+      brokers.add(broker);
+      when(brokerRepo.findByUsername(broker.getUsername())).thenReturn(broker);
+    }
+    for (int n = 0; n < 50; n++) {
+      for (Broker broker : brokers) {
+        Order order = new Order(broker, 1 + n % 24, 1.0 + n, -20.0 - n);
+        broker.setIdPrefix(IdGenerator.extractPrefix(order.getId()));
+        burst.add(broker.getKey() + converter.toXML(order));
+      }
+    }
+
+    countRoutes();
+  }
+
+  // counts the messages routed by the receiver
+  private void countRoutes ()
+  {
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer (InvocationOnMock invocation)
+      {
+        routed.incrementAndGet();
+        return null;
+      }
+    }).when(brokerProxy).routeMessage(any());
+  }
+
+  @After
+  public void tearDown ()
+  {
+    receiver.setDefaults();
+  }
+
+  private Runnable sendBurst ()
+  {
+    return new Runnable() {
+      @Override
+      public void run ()
+      {
+        routed.set(0);
+        for (String xml : burst) {
+          receiver.onMessage(xml);
+        }
+        while (routed.get() < burst.size()) {
+          Thread.yield();
+        }
+        // keep the mock from holding every invocation
+        reset(brokerProxy);
+        countRoutes();
+      }
+    };
+  }
+
+  // runs the bursts, then reports throughput and the receiver's own
+  // latency figures
+  private void run (String label, boolean parallel, int threads)
+  {
+    ReflectionTestUtils.setField(receiver, "parallelDecoding", parallel);
+    ReflectionTestUtils.setField(receiver, "decodeThreads", threads);
+    receiver.setDefaults();
+    receiver.initialize(null, new ArrayList<String>());
+    BenchmarkTimer.Result result =
+        new BenchmarkTimer().measure(label, burst.size(), sendBurst());
+    long count = ((AtomicLong)
+        ReflectionTestUtils.getField(receiver, "messageCount")).get();
+    long latency = ((AtomicLong)
+        ReflectionTestUtils.getField(receiver, "routeLatency")).get();
+    long maxLatency = ((AtomicLong)
+        ReflectionTestUtils.getField(receiver, "maxRouteLatency")).get();
+    System.out.println(String.format("  %.0f msg/sec, mean latency %d usec, "
+                                     + "max latency %d usec",
+                                     1e6 / result.wallMicros,
+                                     latency / count / 1000,
+                                     maxLatency / 1000));
+  }
+
+  @Test
+  public void decode ()
+  {
+    run("decode on the listener thread", false, 1);
+    int processors = Runtime.getRuntime().availableProcessors();
+    for (int threads = 2; threads <= Math.max(2, processors); threads *= 2) {
+      run("decode on " + threads + " threads", true, threads);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+  private LatencyHistogram histogram;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    histogram = new LatencyHistogram();
+  }
+
+  @Test
+  public void empty ()
+  {
+    assertEquals("no samples", 0l, histogram.getCount());
+    assertEquals("zero max", 0l, histogram.getMaxMillis());
+    assertEquals("zero mean", 0.0, histogram.getMeanMillis(), 1e-6);
+  }
+
+  @Test
+  public void buckets ()
+  {
+    histogram.record(-2000000l); // early
+    histogram.record(500000l); // 0.5 msec
+    histogram.record(3000000l); // 3 msec
+    histogram.record(2000000000l); // 2 sec
+    assertEquals("four samples", 4l, histogram.getCount());
+    assertEquals("two under 1 msec", 2l, histogram.getBucketCount(0));
+    assertEquals("one in 2-5 msec", 1l, histogram.getBucketCount(2));
+    assertEquals("one over 1 sec", 1l,
+                 histogram.getBucketCount(LatencyHistogram.BOUNDS.length));
+    assertEquals("max", 2000l, histogram.getMaxMillis());
+    histogram.clear();
+    assertEquals("cleared", 0l, histogram.getCount());
+  }
+}
@@ -0,0 +1,107 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.msg.PauseRelease;
+import org.powertac.common.msg.PauseRequest;
+
+public class MessageRouterTest
+{
+  private MessageRouter router;
+  private Broker broker;
+  private TestListener listener;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    router = new MessageRouter();
+    router.setDefaults();
+    broker = new Broker("Anne");
+    listener = new TestListener();
+  }
+
+  @Test
+  public void routeEnabledBroker ()
+  {
+    router.registerBrokerMessageListener(listener, PauseRequest.class);
+    PauseRequest msg = new PauseRequest(broker);
+    assertFalse("not routed from disabled broker", router.route(msg));
+    assertEquals("no messages", 0, listener.messages.size());
+
+    broker.setEnabled(true);
+    assertTrue("routed from enabled broker", router.route(msg));
+    assertEquals("one message", 1, listener.messages.size());
+    assertSame("correct message", msg, listener.messages.get(0));
+  }
+
+  @Test
+  public void routeUnregistered ()
+  {
+    broker.setEnabled(true);
+    assertFalse("no targets", router.route(new PauseRelease(broker)));
+    assertEquals("no messages", 0, listener.messages.size());
+  }
+
+  @Test
+  public void multipleListeners ()
+  {
+    TestListener second = new TestListener();
+    router.registerBrokerMessageListener(listener, PauseRequest.class);
+    router.registerBrokerMessageListener(second, PauseRequest.class);
+    // duplicate registration is ignored
+    router.registerBrokerMessageListener(listener, PauseRequest.class);
+    broker.setEnabled(true);
+    PauseRequest msg = new PauseRequest(broker);
+    assertEquals("two registrations", 2,
+                 router.getRegistrations(msg).size());
+    assertTrue("routed", router.route(msg));
+    assertEquals("first listener", 1, listener.messages.size());
+    assertEquals("second listener", 1, second.messages.size());
+  }
+
+  @Test
+  public void registrationCleared ()
+  {
+    router.registerBrokerMessageListener(listener, PauseRequest.class);
+    router.setDefaults();
+    broker.setEnabled(true);
+    assertFalse("not routed", router.route(new PauseRequest(broker)));
+  }
+
+  @Test
+  public void listenerException ()
+  {
+    router.registerBrokerMessageListener(new FailingListener(),
+                                         PauseRequest.class);
+    router.registerBrokerMessageListener(listener, PauseRequest.class);
+    broker.setEnabled(true);
+    assertTrue("routed", router.route(new PauseRequest(broker)));
+    assertEquals("second listener still called", 1,
+                 listener.messages.size());
+  }
+
+  // listener that collects the messages it sees
+  public static class TestListener
+  {
+    ArrayList<Object> messages = new ArrayList<Object>();
+
+    public void handleMessage (PauseRequest msg)
+    {
+      messages.add(msg);
+    }
+  }
+
+  // listener that fails on every message
+  public static class FailingListener
+  {
+    public void handleMessage (PauseRequest msg)
+    {
+      throw new IllegalStateException("test failure");
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package org.powertac.server;
+
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.ExecutorService;
+
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powertac.common.Competition;
+import org.powertac.common.TimeService;
+import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.TimeslotPhaseProcessor;
+import org.powertac.common.repo.TimeslotRepo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Wall time of CompetitionControlService.step(), with the processors of
+ * each phase activated one at a time and with parallelPhases set. Each
+ * of the four phases has four independent processors doing CPU-bound
+ * work of different sizes, so the concurrent run is bounded by the
+ * largest processor in each phase and by the number of cores. The clock
+ * is a mock, and the sim time is moved to the next timeslot before each
+ * step, so no time is spent waiting for ticks. Run with
+ * <pre>  mvn test -Dtest=PhaseBenchmark</pre>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:cc-config.xml"})
+@DirtiesContext
+public class PhaseBenchmark
+{
+  @Autowired
+  private CompetitionControlService ccs;
+
+  @Autowired
+  private TimeslotRepo timeslotRepo;
+
+  @Autowired
+  private TimeService timeService;
+
+  @Autowired
+  private BrokerProxy brokerProxy;
+
+  private Competition competition;
+  private Instant base = new Instant(1270080000000l);
+  private int timeslots = 20;
+
+  // the next timeslot to step through
+  private int slot = 0;
+
+  // a processor that does a fixed amount of arithmetic when activated
+  static class Worker extends TimeslotPhaseProcessor
+  {
+    private int iterations;
+    volatile double sink = 0.0;
+
+    Worker (int iterations)
+    {
+      super();
+      this.iterations = iterations;
+    }
+
+    @Override
+    public void activate (Instant time, int phaseNumber)
+    {
+      double sum = 0.0;
+      for (int i = 1; i <= iterations; i++) {
+        sum += Math.sqrt(i) / i;
+      }
+      sink = sum;
+    }
+  }
+
+  @Before
+  public void setUp ()
+  {
+    competition = Competition.newInstance("phase-benchmark")
+        .withSimulationBaseTime(base);
+    Competition.setCurrent(competition);
+    timeService.setClockParameters(base.getMillis(),
+                                   competition.getSimulationRate(),
+                                   competition.getSimulationModulo());
+    timeService.setCurrentTime(base);
+
+    // enough timeslots for every step, and the open ones beyond
+    timeslotRepo.recycle();
+    int steps = 2 * 15 * timeslots;
+    for (int i = 0; i < steps + competition.getTimeslotsOpen() + 2; i++) {
+      timeslotRepo.makeTimeslot(base.plus(i * competition.getTimeslotDuration()));
+    }
+
+    ReflectionTestUtils.setField(ccs, "competition", competition);
+    ReflectionTestUtils.setField(ccs, "clock",
+                                 mock(SimulationClockControl.class));
+    ReflectionTestUtils.setField(ccs, "profiler", new StepProfiler(100));
+    ReflectionTestUtils.setField(ccs, "running", true);
+    ReflectionTestUtils.setField(ccs, "bootstrapMode", true);
+    ReflectionTestUtils.setField(ccs, "timeslotCount", Integer.MAX_VALUE);
+    ReflectionTestUtils.setField(ccs, "phaseRegistrations", null);
+    for (int phase = 1; phase <= 4; phase++) {
+      for (int size = 1; size <= 4; size++) {
+        ccs.registerTimeslotPhase(new Worker(size * 50000), phase);
+      }
+    }
+  }
+
+  @After
+  public void tearDown ()
+  {
+    ExecutorService executor = (ExecutorService)
+        ReflectionTestUtils.getField(ccs, "phaseExecutor");
+    if (null != executor)
+      executor.shutdown();
+    ReflectionTestUtils.setField(ccs, "phaseExecutor", null);
+    ReflectionTestUtils.setField(ccs, "phaseRegistrations", null);
+    ReflectionTestUtils.setField(ccs, "running", false);
+  }
+
+  // steps through a number of timeslots, as the sim loop does once each
+  // tick has arrived
+  private Runnable runTimeslots ()
+  {
+    return new Runnable() {
+      @Override
+      public void run ()
+      {
+        for (int ts = 0; ts < timeslots; ts++) {
+          long offset = slot * competition.getTimeslotDuration();
+          timeService.setCurrentTime(base.plus(offset));
+          ReflectionTestUtils.setField(ccs, "currentSlot", slot);
+          ccs.step();
+          slot += 1;
+        }
+        // keep the mock from holding every broadcast
+        reset(brokerProxy);
+      }
+    };
+  }
+
+  private BenchmarkTimer.Result run (String label, boolean parallel,
+                                     int threads)
+  {
+    ReflectionTestUtils.setField(ccs, "parallelPhases", parallel);
+    ReflectionTestUtils.setField(ccs, "phaseThreads", threads);
+    ccs.setupPhaseLayers();
+    return new BenchmarkTimer().measure(label, timeslots, runTimeslots());
+  }
+
+  @Test
+  public void phases ()
+  {
+    BenchmarkTimer.Result sequential =
+        run("phases in sequence, per timeslot", false, 1);
+    BenchmarkTimer.Result concurrent =
+        run("phases concurrent on 4 threads, per timeslot", true, 4);
+    System.out.println(String.format("%d cores: %.1fx less wall time "
+                                     + "per timeslot",
+                                     Runtime.getRuntime().availableProcessors(),
+                                     sequential.wallMicros
+                                     / concurrent.wallMicros));
+  }
+}
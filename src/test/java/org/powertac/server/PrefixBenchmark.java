@@ -0,0 +1,131 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.IdGenerator;
+import org.powertac.common.repo.BrokerRepo;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Cost of validating the key prefix of inbound broker messages, with
+ * ServerMessageReceiver.validateBrokerPrefix() and with the two-regex
+ * version it replaced, on order, tariff and balancing-order text in the
+ * form brokers send. Run with
+ * <pre>  mvn test -Dtest=PrefixBenchmark</pre>
+ */
+public class PrefixBenchmark
+{
+  private static final long ID = 1200000394l;
+
+  private ServerMessageReceiver receiver;
+  private BrokerRepo brokerRepo;
+  private String[] messages;
+  private int rounds = 100000;
+
+  // the regexes validateBrokerPrefix used to run
+  private Pattern brokerRegex = Pattern.compile("<broker>([A-Za-z0-9_ ]+)</broker>");
+  private Pattern idRegex = Pattern.compile(" id=\"([0-9]+)\"");
+
+  @Before
+  public void setUp ()
+  {
+    brokerRepo = new BrokerRepo();
+    for (int i = 0; i < 10; i++) {
+      Broker broker = new Broker("Broker_" + i);
+      broker.setKey("k3j4h5g" + i);
+      broker.setIdPrefix(IdGenerator.extractPrefix(ID));
+      brokerRepo.add(broker);
+    }
+    receiver = new ServerMessageReceiver();
+    ReflectionTestUtils.setField(receiver, "brokerRepo", brokerRepo);
+
+    String key = "k3j4h5g7";
+    messages = new String[] {
+      key + "<order id=\"" + ID + "\" timeslot=\"373\" mWh=\"-23.51\""
+          + " limitPrice=\"31.27\"><broker>Broker_7</broker></order>",
+      key + "<tariff-spec id=\"" + (ID + 1) + "\" minDuration=\"302400000\""
+          + " powerType=\"CONSUMPTION\" signupPayment=\"0.0\""
+          + " earlyWithdrawPayment=\"-5.0\" periodicPayment=\"0.0\">"
+          + "<broker>Broker_7</broker><expiration>1270080000000</expiration>"
+          + "<rates><rate id=\"" + (ID + 2) + "\" tariffId=\"" + (ID + 1)
+          + "\" weeklyBegin=\"-1\" weeklyEnd=\"-1\" dailyBegin=\"-1\""
+          + " dailyEnd=\"-1\" tierThreshold=\"0.0\" fixed=\"true\""
+          + " minValue=\"-0.12\" maxValue=\"0.0\" noticeInterval=\"0\""
+          + " expectedMean=\"0.0\" maxCurtailment=\"0.0\">"
+          + "<rateHistory/></rate></rates><supersedes/></tariff-spec>",
+      key + "<balancing-order id=\"" + (ID + 3) + "\" exerciseRatio=\"0.5\""
+          + " price=\"0.06\" tariffId=\"" + (ID + 1) + "\">"
+          + "<broker>Broker_7</broker></balancing-order>"
+    };
+  }
+
+  // validateBrokerPrefix as it was before it was rewritten
+  private String regexValidate (String message)
+  {
+    int realMsg = message.indexOf('<');
+    if (0 == realMsg)
+      return null;
+    String prefix = message.substring(0, realMsg);
+    Matcher m = brokerRegex.matcher(message);
+    if (m.find(realMsg)) {
+      Broker broker = brokerRepo.findByUsername(m.group(1));
+      if (broker.getKey().equals(prefix)) {
+        m = idRegex.matcher(message);
+        if (m.find(realMsg)) {
+          long idValue = Long.parseLong(m.group(1));
+          if (broker.getIdPrefix() == IdGenerator.extractPrefix(idValue))
+            return message.substring(realMsg);
+        }
+        else {
+          return message.substring(realMsg);
+        }
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void validate ()
+  {
+    for (String message : messages) {
+      assertEquals("same result", regexValidate(message),
+                   receiver.validateBrokerPrefix(message));
+      assertNotNull("valid", receiver.validateBrokerPrefix(message));
+    }
+    BenchmarkTimer timer = new BenchmarkTimer();
+    int ops = rounds * messages.length;
+    BenchmarkTimer.Result before =
+        timer.measure("two regexes and a repo lookup", ops, new Runnable() {
+      @Override
+      public void run ()
+      {
+        for (int i = 0; i < rounds; i++) {
+          for (String message : messages) {
+            regexValidate(message);
+          }
+        }
+      }
+    });
+    BenchmarkTimer.Result after =
+        timer.measure("single-pass scan, cached credentials", ops,
+                      new Runnable() {
+      @Override
+      public void run ()
+      {
+        for (int i = 0; i < rounds; i++) {
+          for (String message : messages) {
+            receiver.validateBrokerPrefix(message);
+          }
+        }
+      }
+    });
+    System.out.println(String.format("%.1fx faster",
+                                     before.cpuMicros / after.cpuMicros));
+  }
+}
@@ -0,0 +1,108 @@
+package org.powertac.server;
+
+import static org.powertac.util.MessageDispatcher.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.beanutils.PropertyUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Order;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+
+/**
+ * Cost of routing inbound order and tariff messages. MessageRouter.route()
+ * uses a broker accessor and handler resolved once per message type. It
+ * is compared with the path route() used to take: a bean-introspection
+ * lookup of the broker, then a reflective dispatch to handleMessage, for
+ * each message. Run with
+ * <pre>  mvn test -Dtest=RouteBenchmark</pre>
+ */
+public class RouteBenchmark
+{
+  private MessageRouter router;
+  private CountingListener listener;
+  private List<Object> messages = new ArrayList<Object>();
+  private int rounds = 1000;
+
+  @Before
+  public void setUp ()
+  {
+    router = new MessageRouter();
+    router.setDefaults();
+    listener = new CountingListener();
+    router.registerBrokerMessageListener(listener, Order.class);
+    router.registerBrokerMessageListener(listener, TariffSpecification.class);
+    for (int i = 0; i < 10; i++) {
+      Broker broker = new Broker("broker" + i);
+      broker.setEnabled(true);
+      for (int timeslot = 1; timeslot <= 24; timeslot++) {
+        messages.add(new Order(broker, timeslot, 1.0 + timeslot, -20.0));
+      }
+      messages.add(new TariffSpecification(broker, PowerType.CONSUMPTION));
+    }
+  }
+
+  @Test
+  public void route ()
+  {
+    BenchmarkTimer timer = new BenchmarkTimer();
+    int ops = rounds * messages.size();
+    BenchmarkTimer.Result before =
+        timer.measure("introspected broker, reflective dispatch", ops,
+                      new Runnable() {
+      @Override
+      public void run ()
+      {
+        for (int i = 0; i < rounds; i++) {
+          for (Object message : messages) {
+            try {
+              Broker broker =
+                  (Broker) PropertyUtils.getSimpleProperty(message, "broker");
+              if (broker.isEnabled())
+                dispatch(listener, "handleMessage", message);
+            }
+            catch (Exception e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        }
+      }
+    });
+    BenchmarkTimer.Result after =
+        timer.measure("MessageRouter.route()", ops, new Runnable() {
+      @Override
+      public void run ()
+      {
+        for (int i = 0; i < rounds; i++) {
+          for (Object message : messages) {
+            router.route(message);
+          }
+        }
+      }
+    });
+    System.out.println(String.format("%.0f messages/sec before, "
+                                     + "%.0f messages/sec after",
+                                     1e6 / before.wallMicros,
+                                     1e6 / after.wallMicros));
+  }
+
+  // counts the messages it is handed
+  public static class CountingListener
+  {
+    long count = 0;
+
+    public void handleMessage (Order msg)
+    {
+      count += 1;
+    }
+
+    public void handleMessage (TariffSpecification msg)
+    {
+      count += 1;
+    }
+  }
+}
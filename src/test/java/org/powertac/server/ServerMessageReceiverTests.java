@@ -4,14 +4,20 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.*;
 
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.jms.TextMessage;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powertac.common.Broker;
+import org.powertac.common.IdGenerator;
 import org.powertac.common.XMLMessageConverter;
 import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.ServerConfiguration;
 import org.powertac.common.msg.BrokerAuthentication;
 import org.powertac.common.msg.PauseRequest;
 import org.powertac.common.repo.BrokerRepo;
@@ -19,6 +25,9 @@ import org.springframework.test.util.ReflectionTestUtils;
 
 import com.thoughtworks.xstream.XStream;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 public class ServerMessageReceiverTests
 {
   ServerMessageReceiver receiver;
@@ -50,6 +59,92 @@ public class ServerMessageReceiverTests
     verify(brokerProxy).routeMessage(ba);
   }
   
+  @Test
+  public void testParallelDecodingOrder () throws Exception
+  {
+    ReflectionTestUtils.setField(receiver, "serverConfig",
+                                 mock(ServerConfiguration.class));
+    ReflectionTestUtils.setField(receiver, "parallelDecoding", true);
+    receiver.initialize(null, new ArrayList<String>());
+
+    // the converter returns the text, the proxy records what it sees
+    when(converter.fromXML(any(String.class))).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer (InvocationOnMock invocation)
+      {
+        return invocation.getArguments()[0];
+      }
+    });
+    final List<Object> routed = new ArrayList<Object>();
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer (InvocationOnMock invocation)
+      {
+        routed.add(invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(brokerProxy).routeMessage(any());
+
+    List<String> sent = new ArrayList<String>();
+    for (int i = 0; i < 500; i++) {
+      String xml = "<broker-authentication username=\"b" + (i % 10)
+          + "\" seq=\"" + i + "\"/>";
+      sent.add(xml);
+      receiver.onMessage(xml);
+    }
+    receiver.stop();
+    assertEquals("all messages routed in order", sent, routed);
+  }
+
+  @Test
+  public void testValidatePrefix ()
+  {
+    long id = 300000123L;
+    Broker broker = new Broker("Anne B_1");
+    broker.setKey("mykey");
+    broker.setIdPrefix(IdGenerator.extractPrefix(id));
+    BrokerRepo repo = mock(BrokerRepo.class);
+    when(repo.findByUsername("Anne B_1")).thenReturn(broker);
+    ReflectionTestUtils.setField(receiver, "brokerRepo", repo);
+
+    String xml = "<order id=\"" + id + "\" timeslot=\"12\">"
+        + "<broker>Anne B_1</broker><mWh>1.0</mWh></order>";
+    assertEquals("valid message", xml,
+                 receiver.validateBrokerPrefix("mykey" + xml));
+    assertNull("wrong key", receiver.validateBrokerPrefix("mykex" + xml));
+    assertNull("short key", receiver.validateBrokerPrefix("mykeyy" + xml));
+    assertNull("no key", receiver.validateBrokerPrefix(xml));
+
+    String noId = "<pause-request><broker>Anne B_1</broker></pause-request>";
+    assertEquals("no id", noId, receiver.validateBrokerPrefix("mykey" + noId));
+
+    Broker carl = new Broker("Carl");
+    carl.setKey("carlkey");
+    carl.setIdPrefix(IdGenerator.extractPrefix(id) + 1);
+    when(repo.findByUsername("Carl")).thenReturn(carl);
+    String badId = "<order id=\"" + id + "\"><broker>Carl</broker></order>";
+    assertNull("wrong id prefix",
+               receiver.validateBrokerPrefix("carlkey" + badId));
+
+    // 2^64 + id, which wraps around to id if accumulated in a long
+    String hugeId = "<order id=\"18446744074009551739\">"
+        + "<broker>Anne B_1</broker></order>";
+    assertNull("id out of range",
+               receiver.validateBrokerPrefix("mykey" + hugeId));
+    String longId = "<order id=\"000000000000" + id + "\">"
+        + "<broker>Anne B_1</broker></order>";
+    assertEquals("long id in range", longId,
+                 receiver.validateBrokerPrefix("mykey" + longId));
+
+    String unknown = "<order id=\"" + id + "\"><broker>Bob</broker></order>";
+    assertNull("unknown broker",
+               receiver.validateBrokerPrefix("mykey" + unknown));
+
+    // cached after the first lookup
+    receiver.validateBrokerPrefix("mykey" + xml);
+    verify(repo, times(1)).findByUsername("Anne B_1");
+  }
+
   // this test requires a Spring context, because the BrokerConverter needs
   // to see the BrokerRepo.
 //  @Test
@@ -0,0 +1,157 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.TimeService;
+
+public class SessionContextTest
+{
+  static private Logger log = Logger.getLogger(SessionContextTest.class);
+
+  private LogService logService;
+  private long base = 1270080000000l; // 2010-04-01 00:00 UTC
+  private int ticks = 50;
+
+  @Before
+  public void setUp ()
+  {
+    logService = new LogService();
+    logService.setPrefix("test-session");
+  }
+
+  @After
+  public void tearDown ()
+  {
+    for (String id : new String[] {"a", "b"}) {
+      for (String ext : new String[] {"trace", "state", "profile"}) {
+        new File("log/test-session-" + id + "." + ext).delete();
+      }
+    }
+  }
+
+  // The per-session part of a short session: starts its logs, runs its
+  // own fast clock, and logs the sim time and its queue name on each
+  // tick. There is no game state here, which is still process-wide.
+  private Thread session (final SessionContext context)
+  {
+    return new Thread("session-" + context.getId()) {
+      @Override
+      public void run ()
+      {
+        context.enter();
+        logService.startLog(context.getId());
+        CompetitionControlService ccs = mock(CompetitionControlService.class);
+        when(ccs.isBootstrapMode()).thenReturn(true);
+        TimeService timeService = new TimeService();
+        // one-hour timeslots, 10 seconds per timeslot
+        timeService.setClockParameters(base, 360l, 3600000l);
+        timeService.setCurrentTime(new Instant(base));
+        SimulationClockControl clock =
+            new SimulationClockControl(ccs, timeService);
+        context.setClock(clock);
+        clock.setFastClock(true, 0);
+        clock.setStart(System.currentTimeMillis() + 10);
+        clock.scheduleTick();
+        Logger stateLog = logService.getStateLogger();
+        for (int i = 0; i < ticks; i++) {
+          assertTrue("tick " + i, clock.waitForTick(i));
+          log.info("tick " + i + " for " + context.getQueueName("serverInput"));
+          stateLog.info(context.getQueueName("serverInput") + "::" + i + "::"
+                        + timeService.getCurrentTime().getMillis());
+          clock.complete();
+        }
+        clock.stop();
+        logService.stopLog();
+        context.leave();
+      }
+    };
+  }
+
+  // Reads a log file, dropping the elapsed time at the start of each line
+  private List<String> readLog (String id, String ext) throws Exception
+  {
+    List<String> result = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(
+        new FileReader("log/test-session-" + id + "." + ext));
+    String line;
+    while (null != (line = in.readLine())) {
+      result.add(line.substring(line.indexOf(ext.equals("state") ? ':' : ' ')
+                                + 1));
+    }
+    in.close();
+    return result;
+  }
+
+  // Counts the lines of a trace log that contain text
+  private int countLines (String id, String text) throws Exception
+  {
+    int result = 0;
+    for (String line : readLog(id, "trace")) {
+      if (line.contains(text))
+        result += 1;
+    }
+    return result;
+  }
+
+  @Test
+  public void queueNames ()
+  {
+    SessionContext context = new SessionContext("a", "a.");
+    assertEquals("prefixed", "a.serverInput",
+                 context.getQueueName("serverInput"));
+    assertEquals("no prefix", "broker",
+                 new SessionContext("b", null).getQueueName("broker"));
+    assertNull("outside a session", SessionContext.currentId());
+    context.enter();
+    assertEquals("in a session", "a", SessionContext.currentId());
+    context.leave();
+    assertNull("left", SessionContext.currentId());
+  }
+
+  @Test(timeout = 60000)
+  public void parallelClocksAndLogs () throws Exception
+  {
+    // one after the other
+    Thread first = session(new SessionContext("a", "a."));
+    first.start();
+    first.join();
+    Thread second = session(new SessionContext("b", "b."));
+    second.start();
+    second.join();
+    List<String> stateA = readLog("a", "state");
+    List<String> stateB = readLog("b", "state");
+    assertEquals("sequential ticks", ticks, stateA.size());
+    assertEquals("a.serverInput::0::" + base, stateA.get(0));
+    assertEquals("b.serverInput::" + (ticks - 1) + "::"
+                 + (base + (ticks - 1) * 3600000l), stateB.get(ticks - 1));
+
+    // side by side
+    SessionContext contextA = new SessionContext("a", "a.");
+    SessionContext contextB = new SessionContext("b", "b.");
+    first = session(contextA);
+    second = session(contextB);
+    first.start();
+    second.start();
+    first.join();
+    second.join();
+    assertNotSame("separate clocks", contextA.getClock(), contextB.getClock());
+    assertEquals("same state log a", stateA, readLog("a", "state"));
+    assertEquals("same state log b", stateB, readLog("b", "state"));
+    assertEquals("a events", ticks, countLines("a", "a.serverInput"));
+    assertEquals("no b events in a", 0, countLines("a", "b.serverInput"));
+    assertEquals("b events", ticks, countLines("b", "b.serverInput"));
+    assertEquals("no a events in b", 0, countLines("b", "a.serverInput"));
+  }
+}
@@ -0,0 +1,218 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.TimeService;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class SimulationClockControlTest
+{
+  private CompetitionControlService ccs;
+  private TimeService timeService;
+  private SimulationClockControl clock;
+  private long base = 1000000000000l;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    ccs = mock(CompetitionControlService.class);
+    when(ccs.isBootstrapMode()).thenReturn(true);
+    timeService = new TimeService();
+    // one-hour timeslots, one msec per timeslot
+    timeService.setClockParameters(base, 3600000l, 3600000l);
+    timeService.setCurrentTime(new Instant(base));
+    clock = new SimulationClockControl(ccs, timeService);
+  }
+
+  @After
+  public void tearDown ()
+  {
+    clock.stop();
+  }
+
+  // runs the sim side of the clock for n ticks
+  private void runTicks (int n, int slowTick, long slowMillis)
+    throws InterruptedException
+  {
+    clock.setStart(System.currentTimeMillis() + 10);
+    clock.scheduleTick();
+    for (int i = 0; i < n; i++) {
+      assertTrue("tick " + i, clock.waitForTick(i));
+      if (i == slowTick)
+        Thread.sleep(slowMillis);
+      clock.complete();
+    }
+    clock.stop();
+  }
+
+  @Test(timeout = 60000)
+  public void watchdogTicks () throws Exception
+  {
+    File stream = File.createTempFile("clock", ".csv");
+    stream.deleteOnExit();
+    clock.setTelemetryFile(stream.getPath());
+    runTicks(20, 5, 300);
+    // complete as soon as the stop is seen
+    clock.waitUntilStop();
+    assertEquals("streamed", 21, countLines(stream));
+    assertEquals("twenty ticks", 19, clock.getTickCount());
+    assertEquals("stopped", SimulationClockControl.Status.STOPPED,
+                 clock.getState());
+    verify(ccs, atLeastOnce()).pause();
+    verify(ccs, atLeastOnce()).resume(anyLong());
+
+    ClockTelemetry telemetry = clock.getTelemetry();
+    assertEquals("twenty records", 20, telemetry.size());
+    assertFalse("slow tick delayed",
+                telemetry.summary().contains(" delayed=0 "));
+    File csv = File.createTempFile("clock", ".csv");
+    csv.deleteOnExit();
+    telemetry.writeCsv(csv.getPath());
+    BufferedReader in = new BufferedReader(new FileReader(csv));
+    assertEquals("header", ClockTelemetry.CSV_HEADER, in.readLine());
+    in.close();
+    assertEquals("one line per tick", 21, countLines(csv));
+  }
+
+  private int countLines (File file) throws Exception
+  {
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    int lines = 0;
+    while (null != in.readLine())
+      lines += 1;
+    in.close();
+    return lines;
+  }
+
+  @Test(timeout = 60000)
+  public void fastTicksWithPauses () throws InterruptedException
+  {
+    final int ticks = 5000;
+    clock.setFastClock(true, 0);
+    final AtomicBoolean done = new AtomicBoolean(false);
+    Thread pauser = new Thread() {
+      @Override
+      public void run ()
+      {
+        while (!done.get()) {
+          clock.requestPause();
+          Thread.yield();
+          clock.releasePause();
+        }
+      }
+    };
+    pauser.start();
+    runTicks(ticks, -1, 0l);
+    done.set(true);
+    pauser.join();
+    assertEquals("all ticks delivered", ticks - 1, clock.getTickCount());
+    assertTrue("lateness recorded",
+               clock.getTickLateness().getCount() >= ticks);
+    // must not block
+    clock.waitUntilStop();
+  }
+
+  // the watchdog path, with ticks every few msec, against a thread that
+  // keeps requesting and releasing pauses, and a slow step now and then
+  // that the watchdog must catch
+  @Test(timeout = 60000)
+  public void watchdogTicksWithPauses () throws InterruptedException
+  {
+    final int ticks = 1000;
+    // a 1 msec tick interval, with the watchdog margins cut to match
+    ReflectionTestUtils.setField(clock, "minPauseInterval", 2);
+    ReflectionTestUtils.setField(clock, "minWindow", 1);
+    final AtomicBoolean done = new AtomicBoolean(false);
+    Thread pauser = new Thread() {
+      @Override
+      public void run ()
+      {
+        while (!done.get()) {
+          clock.requestPause();
+          Thread.yield();
+          clock.releasePause();
+        }
+      }
+    };
+    pauser.start();
+    clock.setStart(System.currentTimeMillis() + 10);
+    clock.scheduleTick();
+    for (int i = 0; i < ticks; i++) {
+      assertTrue("tick " + i, clock.waitForTick(i));
+      if (i % 100 == 50)
+        Thread.sleep(20);
+      clock.complete();
+    }
+    clock.stop();
+    done.set(true);
+    pauser.join();
+    assertEquals("all ticks delivered", ticks - 1, clock.getTickCount());
+    verify(ccs, atLeastOnce()).pause();
+    verify(ccs, atLeastOnce()).resume(anyLong());
+  }
+
+  @Test(timeout = 60000)
+  public void fastTicksNotifyBrokers () throws InterruptedException
+  {
+    when(ccs.isBootstrapMode()).thenReturn(false);
+    // 10 msec per timeslot, so each fast tick moves the start about 10 msec;
+    // the base is on an hour boundary, so whole timeslots are skipped
+    long hour = 1270080000000l;
+    timeService.setClockParameters(hour, 360000l, 3600000l);
+    timeService.setCurrentTime(new Instant(hour));
+    clock = new SimulationClockControl(ccs, timeService);
+    clock.setFastClock(true, 0);
+    clock.setFastClockNotifyShift(50);
+    runTicks(100, -1, 0l);
+    // about one start update for every five ticks, rather than one each
+    verify(ccs, atLeastOnce()).resume(anyLong());
+    verify(ccs, atMost(30)).resume(anyLong());
+  }
+
+  @Test(timeout = 10000)
+  public void interruptedWait () throws InterruptedException
+  {
+    final AtomicBoolean result = new AtomicBoolean(true);
+    final AtomicBoolean flag = new AtomicBoolean(false);
+    Thread sim = new Thread() {
+      @Override
+      public void run ()
+      {
+        // no tick is ever scheduled, so only the interrupt ends the wait
+        result.set(clock.waitForTick(0));
+        flag.set(Thread.currentThread().isInterrupted());
+      }
+    };
+    sim.start();
+    Thread.sleep(50);
+    sim.interrupt();
+    sim.join(2000);
+    assertFalse("wait ended", sim.isAlive());
+    assertFalse("no tick", result.get());
+    assertTrue("interrupt flag kept", flag.get());
+  }
+
+  @Test(timeout = 10000)
+  public void tickBeforeWait () throws InterruptedException
+  {
+    clock.setFastClock(true, 0);
+    clock.setStart(System.currentTimeMillis());
+    clock.scheduleTick();
+    // let the tick arrive before anyone waits for it
+    Thread.sleep(50);
+    assertTrue("tick arrived", clock.waitForTick(0));
+    assertEquals("tick seen", 0, clock.getTickCount());
+    assertEquals("clear", SimulationClockControl.Status.CLEAR,
+                 clock.getState());
+  }
+}
@@ -0,0 +1,157 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StateFileIndexTest
+{
+  private File stateFile;
+  private File cacheFile;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    stateFile = File.createTempFile("test", ".state");
+    cacheFile = new File(stateFile.getPath() + StateFileIndex.EXTENSION);
+    PrintWriter out = new PrintWriter(stateFile);
+    out.println("1:org.powertac.common.Competition::0::withSimulationBaseTime::1270080000000");
+    out.println("1:org.powertac.common.Competition::0::withMinimumTimeslotCount::1320");
+    out.println("1:org.powertac.common.Competition::0::withExpectedTimeslotCount::1440");
+    for (int ts = 0; ts < 10; ts++) {
+      out.println("5:org.powertac.common.WeatherReport::" + (100 + ts)
+                  + "::new::" + ts + "::" + ts + ".0::4.0::250.0::1.0");
+      for (int id = 1; id <= 3; id++) {
+        out.println("5:org.powertac.common.WeatherForecastPrediction::"
+                    + (1000 + id) + "::new::" + id + "::" + ts + "." + id
+                    + "::4.0::250.0::1.0");
+      }
+    }
+    out.close();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    stateFile.delete();
+    cacheFile.delete();
+  }
+
+  @Test
+  public void build () throws Exception
+  {
+    StateFileIndex index = StateFileIndex.get(stateFile.getPath());
+    assertNotNull("indexed", index);
+    assertEquals("base time", 1270080000000l, index.getBaseTime());
+    assertEquals("min count", 1320, index.getMinimumTimeslotCount());
+    assertEquals("expected count", 1440, index.getExpectedTimeslotCount());
+    assertEquals("timeslots", 10, index.getTimeslotCount());
+    assertTrue("cache written", cacheFile.isFile());
+
+    BufferedReader reader = index.openReader(6);
+    assertTrue("report 6", reader.readLine().contains("::new::6::6.0::"));
+    assertTrue("prediction", reader.readLine().contains("::new::1::6.1::"));
+    reader.close();
+    assertEquals("past the end", stateFile.length(), index.getReportOffset(10));
+  }
+
+  @Test
+  public void cached () throws Exception
+  {
+    StateFileIndex first = StateFileIndex.get(stateFile.getPath());
+    StateFileIndex second = StateFileIndex.get("file:" + stateFile.getPath());
+    assertEquals("same offset", first.getReportOffset(4),
+                 second.getReportOffset(4));
+    assertEquals("same base time", first.getBaseTime(), second.getBaseTime());
+  }
+
+  @Test
+  public void stale () throws Exception
+  {
+    StateFileIndex.get(stateFile.getPath());
+    PrintWriter out = new PrintWriter(stateFile);
+    out.println("5:org.powertac.common.WeatherReport::100::new::0::1.0::4.0::250.0::1.0");
+    out.close();
+    StateFileIndex index = StateFileIndex.get(stateFile.getPath());
+    assertEquals("rebuilt", 1, index.getTimeslotCount());
+    assertEquals("no base time", -1l, index.getBaseTime());
+  }
+
+  @Test
+  public void badCompetitionLine () throws Exception
+  {
+    PrintWriter out = new PrintWriter(stateFile);
+    out.println("1:org.powertac.common.Competition::0::withSimulationBaseTime::soon");
+    out.println("1:org.powertac.common.Competition::0::withMinimumTimeslotCount::");
+    out.println("5:org.powertac.common.WeatherReport::100::new::0::1.0::4.0::250.0::1.0");
+    out.close();
+    StateFileIndex index = StateFileIndex.get(stateFile.getPath());
+    assertNotNull("indexed", index);
+    assertEquals("no base time", -1l, index.getBaseTime());
+    assertEquals("no min count", -1, index.getMinimumTimeslotCount());
+    assertEquals("timeslots", 1, index.getTimeslotCount());
+  }
+
+  @Test
+  public void replaceCache () throws Exception
+  {
+    StateFileIndex.get(stateFile.getPath());
+    long length = cacheFile.length();
+    // an out-of-date cache is replaced, and no temporary file is left
+    stateFile.setLastModified(stateFile.lastModified() - 10000l);
+    StateFileIndex index = StateFileIndex.get(stateFile.getPath());
+    assertEquals("timeslots", 10, index.getTimeslotCount());
+    assertEquals("same size", length, cacheFile.length());
+    String[] left = cacheFile.getAbsoluteFile().getParentFile().list();
+    for (String name : left) {
+      assertFalse("temporary file " + name,
+                  name.startsWith(cacheFile.getName()) && name.endsWith(".tmp"));
+    }
+    assertTrue("cache is current",
+               new StateFileIndex(stateFile).load(cacheFile));
+  }
+
+  @Test
+  public void truncatedCache () throws Exception
+  {
+    // a current header with wrong values, cut off in the offset table
+    DataOutputStream out =
+        new DataOutputStream(new FileOutputStream(cacheFile));
+    out.writeInt(StateFileIndex.MAGIC);
+    out.writeInt(StateFileIndex.VERSION);
+    out.writeLong(stateFile.length());
+    out.writeLong(stateFile.lastModified());
+    out.writeLong(42l);
+    out.writeInt(1);
+    out.writeInt(2);
+    out.writeInt(10);
+    out.writeInt(3);
+    out.writeLong(0l);
+    out.close();
+
+    StateFileIndex index = StateFileIndex.get(stateFile.getPath());
+    assertNotNull("indexed", index);
+    assertEquals("base time", 1270080000000l, index.getBaseTime());
+    assertEquals("min count", 1320, index.getMinimumTimeslotCount());
+    assertEquals("timeslots", 10, index.getTimeslotCount());
+    BufferedReader reader = index.openReader(3);
+    assertTrue("report 3", reader.readLine().contains("::new::3::3.0::"));
+    reader.close();
+    assertTrue("cache rewritten",
+               new StateFileIndex(stateFile).load(cacheFile));
+  }
+
+  @Test
+  public void notLocal ()
+  {
+    assertNull("url", StateFileIndex.get("http://localhost/test.state"));
+  }
+}
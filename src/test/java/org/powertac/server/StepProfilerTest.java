@@ -0,0 +1,48 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StepProfilerTest
+{
+  private StepProfiler profiler;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    profiler = new StepProfiler(10);
+  }
+
+  @Test
+  public void stepRecord ()
+  {
+    profiler.startStep();
+    profiler.record("phase1", profiler.start());
+    profiler.record("phase1", profiler.start());
+    profiler.record("broadcast", profiler.start());
+    String record = profiler.endStep(3);
+    String[] fields = record.split(",");
+    assertEquals("three sections", 3, fields.length);
+    assertTrue("phase1 first", fields[0].startsWith("phase1="));
+    assertTrue("broadcast second", fields[1].startsWith("broadcast="));
+    assertTrue("total last", fields[2].startsWith("total="));
+  }
+
+  @Test
+  public void percentiles ()
+  {
+    assertEquals("no samples", -1l, profiler.percentile("total", 50.0));
+    for (int i = 0; i < 20; i++) {
+      profiler.startStep();
+      profiler.endStep(i);
+    }
+    assertTrue("total sampled", profiler.percentile("total", 50.0) >= 0l);
+    assertTrue("max at least median",
+               profiler.percentile("total", 100.0)
+               >= profiler.percentile("total", 50.0));
+    String summary = profiler.summary();
+    assertTrue("window limits samples", summary.startsWith("total: n=10 "));
+  }
+}
@@ -0,0 +1,128 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Cost of parsing the weather server's responses over a two-week run,
+ * one day of 24 reports and 576 forecast predictions per request, with
+ * the shared XStream that WeatherService builds once, and with an XStream
+ * built and configured for every request as parseXML() used to do. The
+ * per-request case clears the shared instance before each parse, so both
+ * use exactly the same configuration. Run with
+ * <pre>  mvn test -Dtest=WeatherParseBenchmark</pre>
+ */
+public class WeatherParseBenchmark
+{
+  private WeatherService weatherService;
+  private DateTime start =
+      new DateTime(2010, 4, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+  private int days = 14;
+
+  private List<Object> requesters = new ArrayList<Object>();
+  private List<String> responses = new ArrayList<String>();
+  private Method parseXML;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    weatherService = new WeatherService();
+    ReflectionTestUtils.setField(weatherService, "simulationBaseTime", start);
+
+    Class<?> requesterClass = null;
+    for (Class<?> inner : WeatherService.class.getDeclaredClasses()) {
+      if (inner.getSimpleName().equals("WeatherRequester"))
+        requesterClass = inner;
+    }
+    Constructor<?> constructor =
+        requesterClass.getDeclaredConstructor(WeatherService.class,
+                                              DateTime.class);
+    constructor.setAccessible(true);
+    parseXML = requesterClass.getDeclaredMethod("parseXML", Object.class);
+    parseXML.setAccessible(true);
+    for (int day = 0; day < days; day++) {
+      DateTime date = start.plusDays(day);
+      requesters.add(constructor.newInstance(weatherService, date));
+      responses.add(response(date));
+    }
+  }
+
+  // a day of weather in the form the weather server returns it
+  private String response (DateTime date)
+  {
+    StringBuilder xml = new StringBuilder("<data><weatherReports>");
+    for (int hour = 0; hour < 24; hour++) {
+      xml.append("<weatherReport date=\"").append(date.plusHours(hour))
+         .append("\" temp=\"").append(8.0 + hour / 3.0)
+         .append("\" windspeed=\"").append(3.0 + hour % 5)
+         .append("\" winddir=\"").append(10.0 * hour)
+         .append("\" cloudcover=\"").append(hour / 24.0).append("\"/>");
+    }
+    xml.append("</weatherReports><weatherForecasts>");
+    for (int hour = 0; hour < 24; hour++) {
+      for (int id = 1; id <= 24; id++) {
+        xml.append("<weatherForecast origin=\"").append(date.plusHours(hour))
+           .append("\" id=\"").append(id)
+           .append("\" temp=\"").append(8.0 + id / 3.0)
+           .append("\" windspeed=\"").append(3.0 + id % 5)
+           .append("\" winddir=\"").append(10.0 * id)
+           .append("\" cloudcover=\"").append(id / 24.0).append("\"/>");
+      }
+    }
+    xml.append("</weatherForecasts></data>");
+    return xml.toString();
+  }
+
+  private Object parse (int day)
+  {
+    try {
+      return parseXML.invoke(requesters.get(day), responses.get(day));
+    }
+    catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Runnable parseRun (final boolean shared)
+  {
+    return new Runnable() {
+      @Override
+      public void run ()
+      {
+        for (int day = 0; day < days; day++) {
+          if (!shared)
+            ReflectionTestUtils.setField(weatherService, "weatherXStream",
+                                         null);
+          parse(day);
+        }
+      }
+    };
+  }
+
+  @Test
+  public void weather ()
+  {
+    for (int day = 0; day < days; day++) {
+      assertNotNull("day " + day + " parsed", parse(day));
+    }
+    BenchmarkTimer timer = new BenchmarkTimer();
+    BenchmarkTimer.Result before =
+        timer.measure("new XStream per request", days, parseRun(false));
+    BenchmarkTimer.Result after =
+        timer.measure("shared XStream per request", days, parseRun(true));
+    System.out.println(String.format("%.0f requests/sec before, "
+                                     + "%.0f requests/sec after",
+                                     1e6 / before.wallMicros,
+                                     1e6 / after.wallMicros));
+  }
+}
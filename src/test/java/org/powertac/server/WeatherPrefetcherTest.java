@@ -0,0 +1,117 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WeatherPrefetcherTest
+{
+  private DateTime day;
+  private WeatherPrefetcher prefetcher;
+
+  // number of failures before each day succeeds, and attempts made
+  private Map<DateTime, Integer> failFirst =
+      new ConcurrentHashMap<DateTime, Integer>();
+  private Map<DateTime, AtomicInteger> attempts =
+      new ConcurrentHashMap<DateTime, AtomicInteger>();
+
+  @Before
+  public void setUp ()
+  {
+    day = new DateTime(2010, 4, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+    prefetcher = new WeatherPrefetcher(new WeatherPrefetcher.Source() {
+      @Override
+      public boolean fetch (DateTime requested)
+      {
+        attempts.putIfAbsent(requested, new AtomicInteger());
+        int count = attempts.get(requested).incrementAndGet();
+        Integer failures = failFirst.get(requested);
+        return null == failures || count > failures;
+      }
+    }, 2, 10l, 40l, 4);
+  }
+
+  @After
+  public void tearDown ()
+  {
+    prefetcher.shutDown();
+  }
+
+  private void waitFor (DateTime requested) throws InterruptedException
+  {
+    for (int i = 0; i < 200 && prefetcher.isInFlight(requested); i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void fetchNowAndDuplicates () throws Exception
+  {
+    assertTrue("fetched", prefetcher.fetchNow(day));
+    prefetcher.request(day);
+    assertTrue("still fetched", prefetcher.fetchNow(day));
+    assertEquals("one attempt", 1, attempts.get(day).get());
+    assertTrue("claimed", prefetcher.claim(day));
+    assertEquals("lead time recorded", 1, prefetcher.getLeadCount());
+  }
+
+  @Test
+  public void leadTimes () throws Exception
+  {
+    DateTime next = day.plusDays(1);
+    prefetcher.fetchNow(day);
+    prefetcher.fetchNow(next);
+    Thread.sleep(20);
+    prefetcher.claim(next);
+    Thread.sleep(20);
+    prefetcher.claim(day);
+    assertEquals("two lead times", 2, prefetcher.getLeadCount());
+    assertTrue("min", prefetcher.getMinLead() >= 20l);
+    assertTrue("max", prefetcher.getMaxLead() >= 40l);
+    assertTrue("mean between",
+               prefetcher.getMinLead() <= prefetcher.getMeanLead()
+               && prefetcher.getMeanLead() <= prefetcher.getMaxLead());
+  }
+
+  @Test
+  public void requestAfterShutDown ()
+  {
+    prefetcher.shutDown();
+    prefetcher.request(day);
+    assertFalse("not in flight", prefetcher.isInFlight(day));
+    assertFalse("not fetched", prefetcher.isFetched(day));
+  }
+
+  @Test
+  public void retryWithBackoff () throws Exception
+  {
+    failFirst.put(day, 2);
+    prefetcher.request(day);
+    prefetcher.request(day);
+    waitFor(day);
+    assertTrue("fetched after retries", prefetcher.isFetched(day));
+    assertEquals("three attempts", 3, attempts.get(day).get());
+    assertEquals("two retries", 2, prefetcher.getRetries());
+  }
+
+  @Test
+  public void giveUp () throws Exception
+  {
+    failFirst.put(day, 100);
+    prefetcher.request(day);
+    waitFor(day);
+    assertFalse("not fetched", prefetcher.isFetched(day));
+    assertEquals("four attempts", 4, attempts.get(day).get());
+    assertEquals("one failure", 1, prefetcher.getFailures());
+    assertFalse("miss", prefetcher.claim(day));
+    assertEquals("miss counted", 1, prefetcher.getMisses());
+  }
+}
@@ -7,6 +7,7 @@ import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Instant;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -15,6 +16,7 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.powertac.common.Competition;
 import org.powertac.common.TimeService;
+import org.powertac.common.WeatherForecast;
 import org.powertac.common.WeatherForecastPrediction;
 import org.powertac.common.WeatherReport;
 import org.powertac.common.config.Configurator;
@@ -30,7 +32,13 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.TreeMap;
 
 import static org.junit.Assert.*;
@@ -75,6 +83,9 @@ public class WeatherServiceTest
   private Competition comp;
   private Configurator config;
 
+  // weather files written by the tests
+  private List<File> files = new ArrayList<File>();
+
   @BeforeClass
   public static void setUpBeforeClass() throws Exception {
     Logger.getRootLogger().setLevel(Level.DEBUG);
@@ -135,6 +146,14 @@ public class WeatherServiceTest
     }).when(serverPropertiesService).configureMe(anyObject());
   }
 
+  @After
+  public void tearDown() {
+    for (File file : files) {
+      file.delete();
+      new File(file.getPath() + StateFileIndex.EXTENSION).delete();
+    }
+  }
+
   // initialization without a configuration
   @Test
   public void testNormalInitialization() {
@@ -299,4 +318,179 @@ public class WeatherServiceTest
     }
 
   }
-}
\ No newline at end of file
+
+  // The weather files below cover hours 2 through 49 of the test period.
+  // Values are chosen so that each report and prediction is distinct.
+  private double[] reportValues(int hour) {
+    return new double[] {hour + 0.5, 4.0, 250.0, 0.5};
+  }
+
+  private double[] predictionValues(int hour, int id) {
+    return new double[] {hour + id / 100.0, id, 200.0, 0.25};
+  }
+
+  private File newFile(String extension) throws IOException {
+    File file = File.createTempFile("weather", extension);
+    files.add(file);
+    return file;
+  }
+
+  // Writes the weather as an XML file. The predictions made at hour 30
+  // are written in reverse id order.
+  private File writeWeatherXml() throws IOException {
+    File file = newFile(".xml");
+    PrintWriter out = new PrintWriter(file);
+    out.println("<data><weatherReports>");
+    for (int hour = 2; hour < 50; hour++) {
+      double[] v = reportValues(hour);
+      out.println("<weatherReport date=\""
+                  + WeatherStoreConverter.dateFormat.print(start.plus(hour * TimeService.HOUR))
+                  + "\" temp=\"" + v[0] + "\" windspeed=\"" + v[1]
+                  + "\" winddir=\"" + v[2] + "\" cloudcover=\"" + v[3] + "\"/>");
+    }
+    out.println("</weatherReports><weatherForecasts>");
+    for (int hour = 2; hour < 50; hour++) {
+      String origin =
+          WeatherStoreConverter.dateFormat.print(start.plus(hour * TimeService.HOUR));
+      for (int i = 1; i <= 24; i++) {
+        int id = (hour == 30) ? 25 - i : i;
+        double[] v = predictionValues(hour, id);
+        out.println("<weatherForecast origin=\"" + origin + "\" id=\"" + id
+                    + "\" temp=\"" + v[0] + "\" windspeed=\"" + v[1]
+                    + "\" winddir=\"" + v[2] + "\" cloudcover=\"" + v[3] + "\"/>");
+      }
+    }
+    out.println("</weatherForecasts></data>");
+    out.close();
+    return file;
+  }
+
+  // Writes the same weather as a state log, with each report followed by
+  // the predictions made at its hour. Timeslot 0 is the start of the test
+  // period, so the first report is in timeslot 2. The last prediction of
+  // gapHour is left out.
+  private File writeStateLog(int gapHour) throws IOException {
+    File file = newFile(".state");
+    PrintWriter out = new PrintWriter(file);
+    out.println("1:org.powertac.common.Competition::0::withSimulationBaseTime::"
+                + start.getMillis());
+    int nextId = 100;
+    for (int hour = 2; hour < 50; hour++) {
+      double[] v = reportValues(hour);
+      out.println("5:org.powertac.common.WeatherReport::" + nextId++
+                  + "::new::" + hour + "::" + v[0] + "::" + v[1]
+                  + "::" + v[2] + "::" + v[3]);
+      for (int id = 1; id <= 24; id++) {
+        if (hour == gapHour && id == 24)
+          continue;
+        v = predictionValues(hour, id);
+        out.println("5:org.powertac.common.WeatherForecastPrediction::"
+                    + nextId++ + "::new::" + id + "::" + v[0] + "::" + v[1]
+                    + "::" + v[2] + "::" + v[3]);
+      }
+    }
+    out.close();
+    return file;
+  }
+
+  // The reports and forecasts of hours 24 through 47, as fetchDay
+  // should return them
+  private List<String> expectedDay() {
+    List<String> result = new ArrayList<String>();
+    for (int hour = 24; hour < 48; hour++) {
+      double[] v = reportValues(hour);
+      StringBuilder line = new StringBuilder();
+      line.append(v[0]).append(',').append(v[1]).append(',')
+          .append(v[2]).append(',').append(v[3]);
+      for (int id = 1; id <= 24; id++) {
+        v = predictionValues(hour, id);
+        line.append(';').append(id).append(':').append(v[0]).append(',')
+            .append(v[1]).append(',').append(v[2]).append(',').append(v[3]);
+      }
+      result.add(line.toString());
+    }
+    return result;
+  }
+
+  // Fetches the day starting at hour 24 from the weather file, and
+  // returns the report and forecast of each hour, with the predictions
+  // of each forecast in id order
+  private List<String> fetchDay(String weatherData) {
+    weatherReportRepo.recycle();
+    weatherForecastRepo.recycle();
+    ReflectionTestUtils.setField(weatherService, "weatherData", weatherData);
+    ReflectionTestUtils.setField(weatherService, "simulationBaseTime",
+                                 start.toDateTime());
+    Instant day = start.plus(24 * TimeService.HOUR);
+    timeService.setCurrentTime(day);
+    weatherService.activate(day, 1);
+
+    List<String> result = new ArrayList<String>();
+    for (int hour = 24; hour < 48; hour++) {
+      timeService.setCurrentTime(start.plus(hour * TimeService.HOUR));
+      WeatherReport report = weatherReportRepo.currentWeatherReport();
+      StringBuilder line = new StringBuilder();
+      line.append(report.getTemperature()).append(',')
+          .append(report.getWindSpeed()).append(',')
+          .append(report.getWindDirection()).append(',')
+          .append(report.getCloudCover());
+      WeatherForecast forecast = weatherForecastRepo.currentWeatherForecast();
+      List<WeatherForecastPrediction> predictions =
+          new ArrayList<WeatherForecastPrediction>(forecast.getPredictions());
+      Collections.sort(predictions, new Comparator<WeatherForecastPrediction>() {
+        @Override
+        public int compare(WeatherForecastPrediction p1,
+                           WeatherForecastPrediction p2) {
+          return p1.getForecastTime() - p2.getForecastTime();
+        }
+      });
+      for (WeatherForecastPrediction p : predictions) {
+        line.append(';').append(p.getForecastTime()).append(':')
+            .append(p.getTemperature()).append(',')
+            .append(p.getWindSpeed()).append(',')
+            .append(p.getWindDirection()).append(',')
+            .append(p.getCloudCover());
+      }
+      result.add(line.toString());
+    }
+    return result;
+  }
+
+  // The binary file converted from an XML file holds the same weather,
+  // with the predictions of each forecast in id order
+  @Test
+  public void xmlStoreRoundTrip() throws Exception {
+    File xml = writeWeatherXml();
+    File store = newFile(WeatherStore.EXTENSION);
+    WeatherStoreConverter.convertXml(xml.getPath(), store.getPath());
+
+    assertEquals("xml file", expectedDay(), fetchDay(xml.getPath()));
+    assertEquals("converted xml file", expectedDay(),
+                 fetchDay(store.getPath()));
+    double[][] reversed =
+        WeatherStore.open(store.getPath()).getForecast(28, 24);
+    assertEquals("first prediction of hour 30", 30.01, reversed[0][0], 1e-6);
+    assertEquals("last prediction of hour 30", 30.24, reversed[23][0], 1e-6);
+  }
+
+  // The binary file converted from a state log holds the same weather,
+  // with the predictions after the first report grouped by hour
+  @Test
+  public void stateStoreRoundTrip() throws Exception {
+    File state = writeStateLog(-1);
+    File store = newFile(WeatherStore.EXTENSION);
+    WeatherStoreConverter.convertState(state.getPath(), store.getPath());
+
+    assertEquals("state log", expectedDay(), fetchDay(state.getPath()));
+    assertEquals("converted state log", expectedDay(),
+                 fetchDay(store.getPath()));
+  }
+
+  // A state log with a prediction missing cannot be grouped by hour
+  @Test(expected = IOException.class)
+  public void stateStoreMissingPrediction() throws Exception {
+    File state = writeStateLog(10);
+    WeatherStoreConverter.convertState(state.getPath(),
+                                       newFile(WeatherStore.EXTENSION).getPath());
+  }
+}
@@ -0,0 +1,77 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WeatherStoreTest
+{
+  private File file;
+  private long start = 1270080000000l; // 2010-04-01 00:00 UTC
+
+  @Before
+  public void setUp () throws Exception
+  {
+    file = File.createTempFile("weather", WeatherStore.EXTENSION);
+    int hours = 48;
+    int horizon = 3;
+    double[][] reports = new double[hours][];
+    double[][] forecasts = new double[hours][];
+    for (int h = 0; h < hours; h++) {
+      reports[h] = new double[] {h, 4.0, 250.0, 0.5};
+      forecasts[h] = new double[horizon * WeatherStore.VALUES];
+      for (int i = 0; i < horizon; i++) {
+        forecasts[h][i * WeatherStore.VALUES] = h + (i + 1) / 10.0;
+      }
+    }
+    // hour 10 has no report, hour 11 no forecast
+    reports[10] = null;
+    forecasts[11] = null;
+    WeatherStore.write(file.getPath(), start, reports, forecasts, horizon);
+  }
+
+  @After
+  public void tearDown ()
+  {
+    file.delete();
+  }
+
+  @Test
+  public void header () throws Exception
+  {
+    WeatherStore store = WeatherStore.open(file.getPath());
+    assertEquals("start", start, store.getStartMillis());
+    assertEquals("hours", 48, store.getHours());
+    assertEquals("horizon", 3, store.getHorizon());
+    assertEquals("hour of start", 0, store.hourOf(start));
+    assertEquals("hour 25", 25, store.hourOf(start + 25 * 3600000l + 10));
+  }
+
+  @Test
+  public void records () throws Exception
+  {
+    WeatherStore store = WeatherStore.open(file.getPath());
+    double[] report = store.getReport(7);
+    assertEquals("temp", 7.0, report[0], 1e-6);
+    assertEquals("cloud", 0.5, report[3], 1e-6);
+    double[][] forecast = store.getForecast(7, 3);
+    assertEquals("3 predictions", 3, forecast.length);
+    assertEquals("last prediction", 7.3, forecast[2][0], 1e-6);
+    assertEquals("shorter forecast", 2, store.getForecast(7, 2).length);
+  }
+
+  @Test
+  public void missing () throws Exception
+  {
+    WeatherStore store = WeatherStore.open(file.getPath());
+    assertNull("no report", store.getReport(10));
+    assertNull("no forecast", store.getForecast(11, 3));
+    assertNull("before start", store.getReport(-1));
+    assertNull("after end", store.getReport(48));
+    assertNull("beyond horizon", store.getForecast(7, 4));
+  }
+}
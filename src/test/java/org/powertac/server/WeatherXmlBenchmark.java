@@ -0,0 +1,238 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Cost of a daily weather request from a full-year weather XML file,
+ * 8760 reports and 210240 forecast predictions, through
+ * WeatherService.xmlRequest() and the WeatherXmlIndex, against the DOM
+ * extraction that xmlRequest used before: a DOM of the whole file for
+ * each request, a scan of it for the reports and one for each of the 24
+ * forecast hours, then a serialized partial document parsed with
+ * XStream. The old path takes seconds per request, so it is timed over
+ * a few days and fewer rounds; the one-time load of the index is
+ * reported separately. Run with
+ * <pre>  mvn test -Dtest=WeatherXmlBenchmark</pre>
+ */
+public class WeatherXmlBenchmark
+{
+  private static final DateTimeFormatter format =
+      DateTimeFormat.forPattern("yyyy-MM-dd HH:00").withZone(DateTimeZone.UTC);
+
+  private WeatherService weatherService;
+  private DateTime start =
+      new DateTime(2010, 4, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+  private int days = 365;
+  private int horizon = 24;
+  private File weatherFile;
+
+  private List<Object> requesters = new ArrayList<Object>();
+  private Method parseXML;
+  private Method xmlRequest;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    weatherFile = File.createTempFile("weather", ".xml");
+    writeWeather();
+
+    weatherService = new WeatherService();
+    ReflectionTestUtils.setField(weatherService, "simulationBaseTime", start);
+    ReflectionTestUtils.setField(weatherService, "weatherData",
+                                 weatherFile.getPath());
+
+    Class<?> requesterClass = null;
+    for (Class<?> inner : WeatherService.class.getDeclaredClasses()) {
+      if (inner.getSimpleName().equals("WeatherRequester"))
+        requesterClass = inner;
+    }
+    Constructor<?> constructor =
+        requesterClass.getDeclaredConstructor(WeatherService.class,
+                                              DateTime.class);
+    constructor.setAccessible(true);
+    parseXML = requesterClass.getDeclaredMethod("parseXML", Object.class);
+    parseXML.setAccessible(true);
+    xmlRequest = requesterClass.getDeclaredMethod("xmlRequest");
+    xmlRequest.setAccessible(true);
+    for (int day = 0; day < days; day++) {
+      requesters.add(constructor.newInstance(weatherService,
+                                             start.plusDays(day)));
+    }
+  }
+
+  @After
+  public void tearDown ()
+  {
+    weatherFile.delete();
+  }
+
+  // a year of hourly reports, and a forecast of 24 predictions made at
+  // each hour, in the layout of the weather server's files
+  private void writeWeather () throws IOException
+  {
+    BufferedWriter out = new BufferedWriter(new FileWriter(weatherFile));
+    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<data>\n");
+    out.write("<weatherReports>\n");
+    int hours = days * 24;
+    for (int h = 0; h < hours; h++) {
+      out.write("<weatherReport date=\"" + format.print(start.plusHours(h))
+                + "\" temp=\"" + (8.0 + h % 24 / 3.0)
+                + "\" windspeed=\"" + (3.0 + h % 5)
+                + "\" winddir=\"" + (10.0 * (h % 36))
+                + "\" cloudcover=\"" + (h % 24 / 24.0) + "\"/>\n");
+    }
+    out.write("</weatherReports>\n<weatherForecasts>\n");
+    for (int h = 0; h < hours; h++) {
+      String origin = format.print(start.plusHours(h));
+      for (int id = 1; id <= horizon; id++) {
+        out.write("<weatherForecast origin=\"" + origin
+                  + "\" id=\"" + id
+                  + "\" temp=\"" + (8.0 + id / 3.0)
+                  + "\" windspeed=\"" + (3.0 + id % 5)
+                  + "\" winddir=\"" + (10.0 * id)
+                  + "\" cloudcover=\"" + (id / 24.0) + "\"/>\n");
+      }
+    }
+    out.write("</weatherForecasts>\n</data>\n");
+    out.close();
+  }
+
+  // The request as it was made before the index: the reports and
+  // forecasts of the day are copied out of a DOM of the whole file into a
+  // new document, which is serialized and parsed by XStream.
+  private Object domRequest (int day) throws Exception
+  {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    Document read = factory.newDocumentBuilder().parse(weatherFile);
+    NodeList nodes = read.getDocumentElement().getChildNodes();
+
+    Document write = factory.newDocumentBuilder().newDocument();
+    write.setXmlStandalone(true);
+    Element root = write.createElement("data");
+    write.appendChild(root);
+    Element reports = write.createElement("weatherReports");
+    root.appendChild(reports);
+    Element forecasts = write.createElement("weatherForecasts");
+    root.appendChild(forecasts);
+
+    DateTime date = start.plusDays(day);
+    String startDate = format.print(date);
+    for (int i = 0; i < nodes.getLength(); i++) {
+      if (!nodes.item(i).getNodeName().equals("weatherReports"))
+        continue;
+      NodeList children = nodes.item(i).getChildNodes();
+      for (int j = 0; j < children.getLength(); j++) {
+        Node report = children.item(j);
+        if (!report.getNodeName().equals("weatherReport")
+            || ((Element) report).getAttribute("date").compareTo(startDate) < 0)
+          continue;
+        reports.appendChild(write.importNode(report, true));
+        if (reports.getChildNodes().getLength() == 24)
+          break;
+      }
+    }
+    for (int h = 0; h < 24; h++) {
+      String origin = format.print(date.plusHours(h));
+      for (int i = 0; i < nodes.getLength(); i++) {
+        if (!nodes.item(i).getNodeName().equals("weatherForecasts"))
+          continue;
+        NodeList children = nodes.item(i).getChildNodes();
+        for (int j = 0; j < children.getLength(); j++) {
+          Node forecast = children.item(j);
+          if (forecast.getNodeName().equals("weatherForecast")
+              && ((Element) forecast).getAttribute("origin").equals(origin))
+            forecasts.appendChild(write.importNode(forecast, true));
+        }
+      }
+    }
+
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    StringWriter buffer = new StringWriter();
+    transformer.transform(new DOMSource(write), new StreamResult(buffer));
+    return parseXML.invoke(requesters.get(day), buffer.toString());
+  }
+
+  private Object indexRequest (int day) throws Exception
+  {
+    return xmlRequest.invoke(requesters.get(day));
+  }
+
+  private Runnable requests (final boolean indexed, final int count)
+  {
+    return new Runnable() {
+      @Override
+      public void run ()
+      {
+        try {
+          for (int day = 0; day < count; day++) {
+            if (indexed)
+              indexRequest(day);
+            else
+              domRequest(day);
+          }
+        }
+        catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+  }
+
+  @Test
+  public void xmlRequests () throws Exception
+  {
+    long loadStart = System.nanoTime();
+    assertNotNull("first day from the index", indexRequest(0));
+    double loadMillis = (System.nanoTime() - loadStart) / 1e6;
+    assertNotNull("last day from the index", indexRequest(days - 1));
+    assertNotNull("first day from the DOM", domRequest(0));
+
+    int domDays = 3;
+    BenchmarkTimer.Result before =
+        new BenchmarkTimer(1, 3).measure("DOM extraction, per request",
+                                         domDays, requests(false, domDays));
+    BenchmarkTimer.Result after =
+        new BenchmarkTimer().measure("WeatherXmlIndex, per request",
+                                     days, requests(true, days));
+    System.out.println(String.format("%d kB, index loaded once in %.0f msec: "
+                                     + "%.0f requests/sec before, "
+                                     + "%.0f requests/sec after, "
+                                     + "full year %.1f sec before, "
+                                     + "%.2f sec after",
+                                     weatherFile.length() / 1024, loadMillis,
+                                     1e6 / before.wallMicros,
+                                     1e6 / after.wallMicros,
+                                     days * before.wallMicros / 1e6,
+                                     (loadMillis * 1e3
+                                      + days * after.wallMicros) / 1e6));
+  }
+}
@@ -0,0 +1,90 @@
+package org.powertac.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WeatherXmlIndexTest
+{
+  private static final DateTimeFormatter format =
+      DateTimeFormat.forPattern("yyyy-MM-dd HH:00").withZone(DateTimeZone.UTC);
+
+  private DateTime start;
+  private WeatherXmlIndex index;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    start = new DateTime(2010, 4, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+    index = new WeatherXmlIndex();
+    index.read(new ByteArrayInputStream(makeWeather(3 * 24, 24).getBytes("UTF-8")));
+  }
+
+  // temperature of report h is h; temperature of prediction id of the
+  // forecast made at hour h is h + id / 100
+  private String makeWeather (int hours, int horizon)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<data>\n");
+    sb.append("<weatherReports>\n");
+    for (int h = 0; h < hours; h++) {
+      sb.append("<weatherReport date=\"").append(format.print(start.plusHours(h)))
+        .append("\" temp=\"").append(h)
+        .append("\" windspeed=\"4.0\" winddir=\"250.0\" cloudcover=\"1.0\"/>\n");
+    }
+    sb.append("</weatherReports>\n<weatherForecasts>\n");
+    for (int h = 0; h < hours; h++) {
+      for (int id = 1; id <= horizon; id++) {
+        sb.append("<weatherForecast origin=\"")
+          .append(format.print(start.plusHours(h)))
+          .append("\" id=\"").append(id)
+          .append("\" temp=\"").append(h + id / 100.0)
+          .append("\" windspeed=\"4.0\" winddir=\"250.0\" cloudcover=\"1.0\"/>\n");
+      }
+    }
+    sb.append("</weatherForecasts>\n</data>\n");
+    return sb.toString();
+  }
+
+  @Test
+  public void counts ()
+  {
+    assertEquals("reports", 72, index.getReportCount());
+    assertEquals("predictions", 72 * 24, index.getPredictionCount());
+  }
+
+  @Test
+  public void reportSlice ()
+  {
+    List<double[]> reports =
+        index.getReports(format.print(start.plusHours(24)), 24);
+    assertEquals("24 reports", 24, reports.size());
+    assertEquals("first", 24.0, reports.get(0)[0], 1e-6);
+    assertEquals("last", 47.0, reports.get(23)[0], 1e-6);
+    assertEquals("wind", 4.0, reports.get(0)[1], 1e-6);
+
+    reports = index.getReports(format.print(start.plusHours(60)), 24);
+    assertEquals("short at end", 12, reports.size());
+  }
+
+  @Test
+  public void forecast ()
+  {
+    List<double[]> predictions =
+        index.getForecast(format.print(start.plusHours(5)));
+    assertEquals("24 predictions", 24, predictions.size());
+    assertEquals("first id", 1.0, predictions.get(0)[0], 1e-6);
+    assertEquals("last id", 24.0, predictions.get(23)[0], 1e-6);
+    assertEquals("temp", 5.24, predictions.get(23)[1], 1e-6);
+    assertTrue("missing origin",
+               index.getForecast(format.print(start.minusHours(1))).isEmpty());
+  }
+}